@@ -35,12 +35,20 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Handler;
+import java.util.stream.Collectors;
 
 import static io.onedev.commons.bootstrap.Bootstrap.setupProxies;
 
@@ -59,6 +67,15 @@ public class Agent {
 	
 	public static final int MAX_MESSAGE_BYTES = MAX_MESSAGE_CHARS*4+100;
 	
+	public static final long MIN_RECONNECT_DELAY = 500;
+	
+	public static final long MAX_RECONNECT_DELAY = 60000;
+	
+	public static final int MAX_CHUNK_BYTES = 1024*1024;
+	
+	// Max message size once server agrees to chunk large calls
+	public static final int MAX_CHUNKED_MESSAGE_BYTES = 4*MAX_CHUNK_BYTES;
+	
 	public static final String SERVER_URL_KEY = "serverUrl";
 	
 	public static final String AGENT_TOKEN_KEY = "agentToken";
@@ -71,6 +88,16 @@ public class Agent {
 	
 	public static final String DOCKER_PATH_KEY = "dockerPath";
 
+	public static final String COMPRESS_THRESHOLD_KEY = "compressThreshold";
+
+	public static final String CONTAINER_STOP_TIMEOUT_KEY = "containerStopTimeout";
+
+	public static final String NETWORK_POOL_SIZE_KEY = "networkPoolSize";
+
+	public static final String IMAGE_CACHE_BUDGET_KEY = "imageCacheBudget";
+
+	public static final String PINNED_IMAGES_KEY = "pinnedImages";
+
 	public static boolean sandboxMode;
 	
 	public static File installDir;
@@ -90,9 +117,24 @@ public class Agent {
 	public static String gitPath;
 	
 	public static String dockerPath;
+
+	public static int compressThreshold = 8192;
+
+	// Seconds to wait for containers to stop gracefully before killing them when job finishes
+	public static int containerStopTimeout = 10;
+
+	// Max number of docker networks kept for reuse per daemon and network options, 0 to disable
+	public static int networkPoolSize;
+
+	// Max total bytes of local images before least recently used ones are removed, 0 to disable
+	public static long imageCacheBudget;
+
+	public static List<String> pinnedImages = new ArrayList<>();
 	
 	public static volatile boolean reconnect;
 	
+	private static final Object reconnectLock = new Object();
+	
 	public static String version;
 	
 	public static String name;
@@ -111,6 +153,8 @@ public class Agent {
 
 	private static volatile WebSocketClient client;
 	
+	private static volatile URI websocketUri;
+	
 	public static void main(String[] args) throws Exception {
 		thread = Thread.currentThread();
 		
@@ -134,6 +178,9 @@ public class Agent {
 				} catch (InterruptedException e) {
 				}
 			}
+			NetworkPool.deleteAll();
+			ImageCacheManager.save();
+			HelperContainer.removeAll();
 		}));
 		
 		try {
@@ -254,6 +301,7 @@ public class Agent {
 					serverPort = 443;
 			}
 
+			int attempts = 0;
 			while (true) {
 				if (stopping) {
 					stopped = true;
@@ -268,7 +316,7 @@ public class Agent {
 				    	if (!logExpectedError(e, logger))
 				    		logger.error("Error connecting to server", e);
 						try {
-							Thread.sleep(5000);
+							Thread.sleep(getReconnectDelay(attempts++));
 						} catch (Exception e2) {
 						}
 					}
@@ -284,6 +332,7 @@ public class Agent {
 				throw new ExplicitException("Property '" + SERVER_URL_KEY + "' should start either with 'http://' or 'https://'");
 			
 			websocketUrl = websocketUrl + "/~server";
+			websocketUri = new URI(websocketUrl);
 			
 			token = System.getenv(AGENT_TOKEN_KEY);
 			if (StringUtils.isBlank(token))
@@ -344,6 +393,48 @@ public class Agent {
 					dockerPath = "docker";
 			}
 
+			String compressThresholdString = System.getenv(COMPRESS_THRESHOLD_KEY);
+			if (StringUtils.isBlank(compressThresholdString))
+				compressThresholdString = System.getProperty(COMPRESS_THRESHOLD_KEY);
+			if (StringUtils.isBlank(compressThresholdString))
+				compressThresholdString = agentProps.getProperty(COMPRESS_THRESHOLD_KEY);
+			if (StringUtils.isNotBlank(compressThresholdString))
+				compressThreshold = Integer.parseInt(compressThresholdString.trim());
+
+			String containerStopTimeoutString = System.getenv(CONTAINER_STOP_TIMEOUT_KEY);
+			if (StringUtils.isBlank(containerStopTimeoutString))
+				containerStopTimeoutString = System.getProperty(CONTAINER_STOP_TIMEOUT_KEY);
+			if (StringUtils.isBlank(containerStopTimeoutString))
+				containerStopTimeoutString = agentProps.getProperty(CONTAINER_STOP_TIMEOUT_KEY);
+			if (StringUtils.isNotBlank(containerStopTimeoutString))
+				containerStopTimeout = Integer.parseInt(containerStopTimeoutString.trim());
+
+			String networkPoolSizeString = System.getenv(NETWORK_POOL_SIZE_KEY);
+			if (StringUtils.isBlank(networkPoolSizeString))
+				networkPoolSizeString = System.getProperty(NETWORK_POOL_SIZE_KEY);
+			if (StringUtils.isBlank(networkPoolSizeString))
+				networkPoolSizeString = agentProps.getProperty(NETWORK_POOL_SIZE_KEY);
+			if (StringUtils.isNotBlank(networkPoolSizeString))
+				networkPoolSize = Integer.parseInt(networkPoolSizeString.trim());
+
+			// Specified in megabytes
+			String imageCacheBudgetString = System.getenv(IMAGE_CACHE_BUDGET_KEY);
+			if (StringUtils.isBlank(imageCacheBudgetString))
+				imageCacheBudgetString = System.getProperty(IMAGE_CACHE_BUDGET_KEY);
+			if (StringUtils.isBlank(imageCacheBudgetString))
+				imageCacheBudgetString = agentProps.getProperty(IMAGE_CACHE_BUDGET_KEY);
+			if (StringUtils.isNotBlank(imageCacheBudgetString))
+				imageCacheBudget = Long.parseLong(imageCacheBudgetString.trim()) * 1024 * 1024;
+
+			String pinnedImagesString = System.getenv(PINNED_IMAGES_KEY);
+			if (StringUtils.isBlank(pinnedImagesString))
+				pinnedImagesString = System.getProperty(PINNED_IMAGES_KEY);
+			if (StringUtils.isBlank(pinnedImagesString))
+				pinnedImagesString = agentProps.getProperty(PINNED_IMAGES_KEY);
+			if (StringUtils.isNotBlank(pinnedImagesString))
+				pinnedImages = Arrays.stream(pinnedImagesString.split(","))
+						.map(String::trim).filter(it -> !it.isEmpty()).collect(Collectors.toList());
+
 			sslFactory = KubernetesHelper.buildSSLFactory(getTrustCertsDir());
 			SslContextFactory.Client sslContextFactory = JettySslUtils.forClient(sslFactory);
 
@@ -355,34 +446,50 @@ public class Agent {
 			client.getPolicy().setMaxTextMessageSize(MAX_MESSAGE_BYTES);
 			client.getPolicy().setMaxBinaryMessageSize(MAX_MESSAGE_BYTES);
 			
-			ClientUpgradeRequest request = new ClientUpgradeRequest();
-			request.setHeader(HttpHeaders.AUTHORIZATION, KubernetesHelper.BEARER + " " + token);
+			ClientUpgradeRequest request = newUpgradeRequest();
 			
+			attempts = 0;
 			while (!stopping) {
+				long connectedTime = 0;
 				try {
 					logger.info("Connecting to " + serverUrl + "...");
 					
 					reconnect = false;
 					client.start();
-					client.connect(new AgentSocket(), new URI(websocketUrl), request);
+					request.setHeader(Capabilities.RUNNING_JOBS_HEADER, 
+							String.join(",", AgentSocket.getRunningJobTokens()));
+					try {
+						client.connect(new AgentSocket(), websocketUri, request)
+								.get(SOCKET_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof Exception)
+							throw (Exception) e.getCause();
+						else
+							throw e;
+					}
+					connectedTime = System.currentTimeMillis();
 					
-					while (!reconnect && !stopping) {
-						try {
-							Thread.sleep(5000);
-						} catch (Exception e) {
-						}
+					synchronized (reconnectLock) {
+						while (!reconnect && !stopping) 
+							reconnectLock.wait();
 					}
-	
+				} catch (Exception e) {
+					if (!stopping && !logExpectedError(e, logger))
+			    		logger.error("Error connecting to server", e);
+				} finally {
 					try {
 						client.stop();
 					} catch (Exception e) {
 					}
-				} catch (Exception e) {
-			    	if (!logExpectedError(e, logger))
-			    		logger.error("Error connecting to server", e);
+				}
+				
+				// Reset backoff only if last connection was stable
+				if (connectedTime != 0 && System.currentTimeMillis() - connectedTime > MAX_RECONNECT_DELAY)
+					attempts = 0;
+				if (!stopping) {
 					try {
-						Thread.sleep(5000);
-					} catch (Exception ignored) {
+						Thread.sleep(getReconnectDelay(attempts++));
+					} catch (InterruptedException ignored) {
 					}
 				}
 			}
@@ -393,6 +500,38 @@ public class Agent {
 		}
 	}
 
+	private static ClientUpgradeRequest newUpgradeRequest() {
+		ClientUpgradeRequest request = new ClientUpgradeRequest();
+		request.setHeader(HttpHeaders.AUTHORIZATION, KubernetesHelper.BEARER + " " + token);
+		Capabilities.advertise(request);
+		return request;
+	}
+	
+	/**
+	 * Open an additional connection to server for bulk data of current connection
+	 */
+	static Future<Session> connectBulk(Object socket) throws IOException {
+		ClientUpgradeRequest request = newUpgradeRequest();
+		request.setHeader(Capabilities.CONNECTION_HEADER, Capabilities.BULK_CONNECTION_VALUE);
+		return client.connect(socket, websocketUri, request);
+	}
+	
+	public static void requestReconnect() {
+		synchronized (reconnectLock) {
+			reconnect = true;
+			reconnectLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Exponential backoff with jitter, so that agents disconnected by a server restart do not
+	 * reconnect all at once
+	 */
+	static long getReconnectDelay(int attempts) {
+		long delay = Math.min(MAX_RECONNECT_DELAY, MIN_RECONNECT_DELAY << Math.min(attempts, 16));
+		return delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+	}
+	
 	static File getTrustCertsDir() {
 		return new File(installDir, "conf/trust-certs");
 	}
@@ -533,10 +672,4 @@ public class Agent {
 		return new File(installDir, "work");
 	}
 	
-	public static void log(Session session, String jobToken, String message, @Nullable String sessionId) {
-		if (sessionId == null)
-			sessionId = "";
-		new Message(MessageTypes.JOB_LOG, jobToken + ":" + sessionId + ":" + message).sendBy(session);
-	}
-	
 }
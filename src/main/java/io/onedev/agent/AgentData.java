@@ -2,6 +2,7 @@ package io.onedev.agent;
 
 import io.onedev.k8shelper.OsInfo;
 
+import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.Map;
 
@@ -20,15 +21,23 @@ public class AgentData implements Serializable {
 	private final int cpus;
 
 	private final Map<String, String> attributes;
+
+	private final Map<String, Long> metrics;
 	
 	public AgentData(String token, OsInfo osInfo, String name, String ipAddress,
-					 int cpus, Map<String, String> attributes) {
+					 int cpus, Map<String, String> attributes, @Nullable Map<String, Long> metrics) {
 		this.token = token;
 		this.osInfo = osInfo;
 		this.name = name;
 		this.ipAddress = ipAddress;
 		this.cpus = cpus;
 		this.attributes = attributes;
+		this.metrics = metrics;
+	}
+
+	public AgentData(String token, OsInfo osInfo, String name, String ipAddress,
+					 int cpus, Map<String, String> attributes) {
+		this(token, osInfo, name, ipAddress, cpus, attributes, null);
 	}
 
 	public String getToken() {
@@ -54,5 +63,13 @@ public class AgentData implements Serializable {
 	public Map<String, String> getAttributes() {
 		return attributes;
 	}
+
+	/**
+	 * @return counters such as image cache hits, or <tt>null</tt> if not reported by agent
+	 */
+	@Nullable
+	public Map<String, Long> getMetrics() {
+		return metrics;
+	}
 	
 }
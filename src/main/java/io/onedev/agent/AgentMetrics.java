@@ -0,0 +1,84 @@
+package io.onedev.agent;
+
+import io.onedev.commons.bootstrap.Bootstrap;
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of agent reported to server. They are sent with agent data when connected, and
+ * then periodically as {@link MessageTypes#AGENT_METRICS} message if server accepts
+ * {@link Capabilities#AGENT_METRICS}, so that server sees them change while agent is
+ * running instead of only values at connect time
+ */
+public class AgentMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(AgentMetrics.class);
+
+	private static final long REPORT_INTERVAL = 60000;
+
+	private static final Map<Session, ScheduledFuture<?>> reporters = new ConcurrentHashMap<>();
+
+	public static void open(Session session) {
+		if (Capabilities.isEnabled(session, Capabilities.AGENT_METRICS)) {
+			reporters.put(session, WebsocketUtils.getScheduler().scheduleWithFixedDelay(
+					() -> Bootstrap.executorService.execute(() -> report(session)),
+					REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	public static void close(Session session) {
+		ScheduledFuture<?> reporter = reporters.remove(session);
+		if (reporter != null)
+			reporter.cancel(false);
+	}
+
+	private static void report(Session session) {
+		if (!session.isOpen())
+			return;
+		try {
+			new Message(MessageTypes.AGENT_METRICS, (Serializable) collect(session),
+					CodecUtils.getCodec(session)).sendBy(session);
+		} catch (Exception e) {
+			logger.error("Error reporting agent metrics", e);
+		}
+	}
+
+	/**
+	 * @param session session metrics of its connection should be included, or <tt>null</tt>
+	 *                to include agent wide metrics only
+	 */
+	public static Map<String, Long> collect(@Nullable Session session) {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.putAll(ImageCacheManager.getMetrics());
+		if (session != null) {
+			OutboundQueue queue = OutboundQueue.of(session);
+			if (queue != null) {
+				metrics.put("outboundWritten", queue.getWritten());
+				metrics.put("outboundDropped", queue.getDropped());
+				metrics.put("outboundFailed", queue.getFailed());
+				metrics.put("outboundStalls", queue.getStalls());
+				metrics.put("outboundStallMillis", queue.getStallMillis());
+				metrics.put("outboundMaxQueuedBytes", queue.getMaxQueuedBytes());
+				metrics.put("linkBytesPerSecond", queue.getLinkBytesPerSecond());
+			}
+			Heartbeat heartbeat = Heartbeat.of(session);
+			if (heartbeat != null) {
+				metrics.put("heartbeatRttMillis", heartbeat.getRttMillis());
+				metrics.put("heartbeatIdleTimeout", heartbeat.getIdleTimeout());
+				metrics.put("heartbeatPings", heartbeat.getPings());
+				metrics.put("heartbeatSkipped", heartbeat.getSkipped());
+			}
+		}
+		return metrics;
+	}
+
+}
@@ -3,16 +3,17 @@ package io.onedev.agent;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import io.onedev.agent.job.*;
 import io.onedev.commons.bootstrap.Bootstrap;
 import io.onedev.commons.utils.*;
 import io.onedev.commons.utils.command.Commandline;
 import io.onedev.commons.utils.command.LineConsumer;
 import io.onedev.k8shelper.*;
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,9 +25,13 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static io.onedev.agent.DockerExecutorUtils.changeOwner;
 import static io.onedev.agent.DockerExecutorUtils.*;
@@ -37,7 +42,7 @@ import static io.onedev.k8shelper.KubernetesHelper.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 @WebSocket
-public class AgentSocket implements Runnable {
+public class AgentSocket {
 
 	private static final Logger logger = LoggerFactory.getLogger(AgentSocket.class);
 	
@@ -53,20 +58,76 @@ public class AgentSocket implements Runnable {
 	
 	private static final Map<String, String> containerNames = new ConcurrentHashMap<>();
 	
+	// Keep results long enough to answer requests resent after reconnecting or call timeout
+	private static final JobRegistry jobRegistry = new JobRegistry(100, 3600000);
+	
 	private Session session;
 	
-	private volatile Thread thread;
+	private final ChunkAssembler chunkAssembler = new ChunkAssembler(Agent.MAX_MESSAGE_BYTES);
 	
-	private volatile boolean stopped;
+	private final InboundDispatcher dispatcher = new InboundDispatcher(Bootstrap.executorService);
 
 	private static volatile String hostWorkPath;
 	
+	private static final Object currentSessionLock = new Object();
+	
+	private static volatile Session currentSession;
+	
+	// Max time a finished job waits for agent to reconnect to send its result
+	private static final long RESUME_TIMEOUT = 300000;
+
+	private static final int MAX_CONCURRENT_SERVICES = 4;
+	
 	@OnWebSocketConnect
 	public void onConnect(Session session) throws IOException {
 		logger.info("Connected to server");
 		this.session = session;
-		thread = new Thread(this);
-		thread.start();
+		if (Capabilities.isEnabled(session, Capabilities.CHUNKED_RPC)) {
+			session.getPolicy().setMaxBinaryMessageSize(Agent.MAX_CHUNKED_MESSAGE_BYTES);
+			session.getPolicy().setMaxTextMessageSize(Agent.MAX_CHUNKED_MESSAGE_BYTES);
+		}
+		OutboundQueue.open(session);
+		Heartbeat.open(session);
+		AgentMetrics.open(session);
+		Channels.open(session);
+		BulkConnection.open(session);
+		synchronized (currentSessionLock) {
+			currentSession = session;
+			currentSessionLock.notifyAll();
+		}
+		if (Capabilities.isEnabled(session, Capabilities.SESSION_RESUME) && !jobThreads.isEmpty()) {
+			logger.info("Resuming running jobs: " + String.join(", ", jobThreads.keySet()));
+			Bootstrap.executorService.execute(JobLogger::resumeAll);
+		}
+	}
+	
+	@Nullable
+	public static Session getCurrentSession() {
+		return currentSession;
+	}
+	
+	/**
+	 * Wait for agent to be connected to server
+	 * 
+	 * @return current session, or <tt>null</tt> if agent is not connected within specified timeout
+	 */
+	@Nullable
+	public static Session waitForCurrentSession(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (currentSessionLock) {
+			long remaining;
+			while (currentSession == null && (remaining = deadline - System.currentTimeMillis()) > 0)
+				currentSessionLock.wait(remaining);
+			return currentSession;
+		}
+	}
+	
+	public static boolean isJobRunning(String jobToken) {
+		return jobThreads.containsKey(jobToken);
+	}
+
+	public static Collection<String> getRunningJobTokens() {
+		return new ArrayList<>(jobThreads.keySet());
 	}
 
 	private String getHostPath(String path, @Nullable String dockerSock) {
@@ -83,12 +144,70 @@ public class AgentSocket implements Runnable {
 	
 	@OnWebSocketMessage
 	public void onMessage(byte[] bytes, int offset, int length) {
-		Message message = Message.of(bytes, offset, length); 
-    	byte[] messageData = message.getData();
+		Message message;
+		try {
+			message = Message.of(bytes, offset, length, session.getPolicy().getMaxBinaryMessageSize());
+		} catch (Exception e) {
+			logger.error("Error parsing websocket message", e);
+			try {
+				session.disconnect();
+			} catch (IOException e2) {
+			}
+			return;
+		}
+		if (message.getType() == MessageTypes.CHANNEL_OPEN) {
+			// Handle in place so that lane of subsequent channel messages can be resolved 
+			Channels channels = Channels.of(session);
+			if (channels != null)
+				channels.onOpen(message.getData());
+		} else {
+			dispatcher.dispatch(getLaneKey(message), () -> process(message));
+		}
+	}
+	
+	/**
+	 * Messages of same lane are processed in order. Shell messages are ordered per shell 
+	 * session, and job control messages per job, while calls and responses are not ordered 
+	 * at all. Control messages have their own lane to not queue behind other handlers
+	 */
+	@Nullable
+	private String getLaneKey(Message message) {
+		switch (message.getType()) {
+		case UPDATE:
+		case UPDATE_ATTRIBUTES:
+			return "agent";
+		case RESTART:
+		case STOP:
+		case ERROR:
+			return "control";
+		case REQUEST_CHUNK:
+		case RESPONSE_CHUNK:
+			return "chunks";
+		case CANCEL_JOB:
+		case RESUME_JOB:
+			return "job:" + message.getDataAsString();
+		case SHELL_INPUT:
+		case CHANNEL_CLOSE:
+			Channels channels = Channels.of(session);
+			if (channels != null)
+				return "shell:" + channels.getName(new BinaryReader(message.getData()).readVarInt());
+			else
+				return "shell:" + StringUtils.substringBefore(message.getDataAsString(), ":");
+		case SHELL_OPEN:
+		case SHELL_EXIT:
+		case SHELL_RESIZE:
+			return "shell:" + StringUtils.substringBefore(message.getDataAsString(), ":");
+		default:
+			return null;
+		}
+	}
+	
+	private void process(Message message) {
+    	ByteBuffer messageData = message.getData();
 		try {
 	    	switch (message.getType()) {
 	    	case UPDATE:
-	    		String versionAtServer = new String(messageData, UTF_8);
+	    		String versionAtServer = message.getDataAsString();
 	    		if (!versionAtServer.equals(Agent.version)) {
 	    			logger.info("Updating agent to version " + versionAtServer + "...");
 	    			Client client = ClientBuilder.newClient();
@@ -181,13 +300,14 @@ public class AgentSocket implements Runnable {
 						Agent.restart();
 					} else {
 						AgentData agentData = new AgentData(Agent.token, Agent.osInfo,
-								Agent.name, Agent.ipAddress, Agent.cpuCount, Agent.attributes);
-						new Message(MessageTypes.AGENT_DATA, agentData).sendBy(session);
+								Agent.name, Agent.ipAddress, Agent.cpuCount, Agent.attributes,
+								AgentMetrics.collect(session));
+						new Message(MessageTypes.AGENT_DATA, agentData, CodecUtils.getCodec(session)).sendBy(session);
 					}
 	    		}
 	    		break;
 	    	case UPDATE_ATTRIBUTES:
-	    		Map<String, String> attributes = SerializationUtils.deserialize(messageData);
+	    		Map<String, String> attributes = CodecUtils.decode(messageData);
 	    		Agent.attributes = attributes;
 	    		Properties props = new Properties();
 	    		props.putAll(attributes);
@@ -204,31 +324,44 @@ public class AgentSocket implements Runnable {
 	    		Agent.stop();
 	    		break;
 	    	case ERROR:
-	    		throw new RuntimeException(new String(messageData, UTF_8));
+	    		throw new RuntimeException(message.getDataAsString());
 	    	case REQUEST:
-	    		Bootstrap.executorService.execute(() -> {
-					try {
-						CallData request = SerializationUtils.deserialize(messageData);
-						CallData response = new CallData(request.getUuid(), service(request.getPayload()));
-						new Message(MessageTypes.RESPONSE, response).sendBy(session);
-					} catch (Exception e) {
-						logger.error("Error handling websocket request", e);
-					}
-				});
+	    		serviceRequest(() -> CodecUtils.decode(messageData));
+	    		break;
+	    	case REQUEST_CHUNK:
+	    		InputStream requestInput = chunkAssembler.append(messageData);
+	    		if (requestInput != null) {
+	    			Bootstrap.executorService.execute(() -> serviceRequest(() -> {
+	    				try (InputStream input = requestInput) {
+	    					return CodecUtils.decode(input);
+	    				}
+	    			}));
+	    		}
 	    		break;
 	    	case RESPONSE:
-	    		WebsocketUtils.onResponse(SerializationUtils.deserialize(messageData));
+	    		WebsocketUtils.onResponse(CodecUtils.decode(messageData));
+	    		break;
+	    	case RESPONSE_CHUNK:
+	    		InputStream responseInput = chunkAssembler.append(messageData);
+	    		if (responseInput != null)
+	    			Bootstrap.executorService.execute(() -> {
+	    				try (InputStream input = responseInput) {
+	    					WebsocketUtils.onResponse(CodecUtils.decode(input));
+	    				} catch (Exception e) {
+	    					logger.error("Error handling websocket response", e);
+	    				}
+	    			});
 	    		break;
 	    	case CANCEL_JOB:
-	    		String jobToken = new String(messageData, UTF_8);
+	    		String jobToken = message.getDataAsString();
 	    		cancelJob(jobToken);
 	    		break;
 	    	case RESUME_JOB: 
-	    		jobToken = new String(messageData, UTF_8);
+	    		jobToken = message.getDataAsString();
 	    		resumeJob(jobToken);
 	    		break;
 	    	case SHELL_OPEN:
-	    		String openData = new String(messageData, UTF_8);
+	    		String openData = message.getDataAsString();
 	    		String sessionId = StringUtils.substringBefore(openData, ":");
 	    		jobToken = StringUtils.substringAfter(openData, ":");
 
@@ -262,24 +395,40 @@ public class AgentSocket implements Runnable {
 	    			shellSessions.put(sessionId, new ShellSession(sessionId, session, shell));
 	    		} else {
 	    			sendError(sessionId, session, "Shell not ready");
+	    			// No shell session is created to release channel announced for the error
+	    			Channels.release(sessionId);
 	    		}
 	    		break;
 	    	case SHELL_EXIT:
-	    		sessionId = new String(messageData, UTF_8);
+	    		sessionId = message.getDataAsString();
 	    		ShellSession shellSession = shellSessions.remove(sessionId);
 	    		if (shellSession != null)
 	    			shellSession.exit();
 	    		break;
 	    	case SHELL_INPUT:
-	    		String inputData = new String(messageData, UTF_8);
-	    		sessionId = StringUtils.substringBefore(inputData, ":");
-	    		String input = StringUtils.substringAfter(inputData, ":");
-	    		shellSession = shellSessions.get(sessionId);
-	    		if (shellSession != null)
-	    			shellSession.sendInput(input);
+	    		Channels channels = Channels.of(session);
+	    		if (channels != null) {
+	    			BinaryReader reader = new BinaryReader(messageData);
+	    			sessionId = channels.getName(reader.readVarInt());
+	    			shellSession = sessionId != null? shellSessions.get(sessionId): null;
+	    			if (shellSession != null)
+	    				shellSession.sendInput(reader.readRemaining());
+	    		} else {
+		    		String inputData = message.getDataAsString();
+		    		sessionId = StringUtils.substringBefore(inputData, ":");
+		    		String input = StringUtils.substringAfter(inputData, ":");
+		    		shellSession = shellSessions.get(sessionId);
+		    		if (shellSession != null)
+		    			shellSession.sendInput(input);
+	    		}
+	    		break;
+	    	case CHANNEL_CLOSE:
+	    		channels = Channels.of(session);
+	    		if (channels != null)
+	    			channels.onClose(messageData);
 	    		break;
 	    	case SHELL_RESIZE:
-	    		String resizeData = new String(messageData, UTF_8);
+	    		String resizeData = message.getDataAsString();
 	    		sessionId = StringUtils.substringBefore(resizeData, ":");
 	    		String rowsAndCols = StringUtils.substringAfter(resizeData, ":");
 	    		int rows = Integer.parseInt(StringUtils.substringBefore(rowsAndCols, ":"));
@@ -320,13 +469,28 @@ public class AgentSocket implements Runnable {
 			logger.debug("Websocket closed (status code: {}, reason: {})", statusCode, reason);
 		else
 			logger.debug("Websocket closed (status code: {})", statusCode);
-		Agent.reconnect = true;
-		while (!stopped) {
-			thread.interrupt();
-			try {
-				Thread.sleep(1000); 
-			} catch (InterruptedException e) {
-			}
+		WebsocketUtils.onClose(session);
+		OutboundQueue.close(session);
+		Heartbeat.close(session);
+		AgentMetrics.close(session);
+		Channels.close(session);
+		BulkConnection.close(session);
+		chunkAssembler.clear();
+		synchronized (currentSessionLock) {
+			if (currentSession == session)
+				currentSession = null;
+		}
+		Agent.requestReconnect();
+	}
+	
+	@OnWebSocketFrame
+	public void onFrame(Frame frame) {
+		Heartbeat heartbeat = Heartbeat.of(session);
+		if (heartbeat != null) {
+			if (frame.getType() == Frame.Type.PONG)
+				heartbeat.onPong(frame.getPayload() != null? frame.getPayload(): ByteBuffer.allocate(0));
+			else
+				heartbeat.onReceived();
 		}
 	}
 	
@@ -354,18 +518,10 @@ public class AgentSocket implements Runnable {
 			FileUtils.writeFile(new File(attributesDir, entry.getKey()), 
 					entry.getValue(), UTF_8);
 		}
+		JobLogger jobLogger = new JobLogger(session, jobData.getJobToken());
 		jobThreads.put(jobData.getJobToken(), Thread.currentThread());
 		buildHomes.put(jobData.getJobToken(), buildHome);
 		try {
-			TaskLogger jobLogger = new TaskLogger() {
-
-				@Override
-				public void log(String message, String sessionId) {
-					Agent.log(session, jobData.getJobToken(), message, sessionId);
-				}
-				
-			};
-
 			FileUtils.createDir(workspaceDir);
 
 			var cacheHelper = new AgentCacheHelper(jobData.getJobToken(), buildHome, jobLogger);
@@ -502,9 +658,40 @@ public class AgentSocket implements Runnable {
 			synchronized (buildHome) {
 				FileUtils.deleteDir(buildHome);
 			}
+			jobLogger.close();
 		}
 	}
 
+	/**
+	 * @return images used by services and steps of specified job, mapped to built-in
+	 * registry logins to pull them
+	 */
+	private LinkedHashMap<String, BuiltInRegistryLogin> getImages(DockerJobData jobData) {
+		var images = new LinkedHashMap<String, BuiltInRegistryLogin>();
+		for (var jobService: jobData.getServices()) {
+			images.putIfAbsent(map(jobData.getImageMappings(), jobService.getImage()),
+					new BuiltInRegistryLogin(jobData.getBuiltInRegistryUrl(), jobData.getJobToken(),
+							jobService.getBuiltInRegistryAccessToken()));
+		}
+		new CompositeFacade(jobData.getActions()).traverse((LeafVisitor<Void>) (facade, position) -> {
+			String image = null;
+			String accessToken = null;
+			if (facade instanceof CommandFacade) {
+				image = ((CommandFacade) facade).getImage();
+				accessToken = ((CommandFacade) facade).getBuiltInRegistryAccessToken();
+			} else if (facade instanceof RunContainerFacade) {
+				image = ((RunContainerFacade) facade).getImage();
+				accessToken = ((RunContainerFacade) facade).getBuiltInRegistryAccessToken();
+			}
+			if (image != null) {
+				images.putIfAbsent(map(jobData.getImageMappings(), image),
+						new BuiltInRegistryLogin(jobData.getBuiltInRegistryUrl(), jobData.getJobToken(), accessToken));
+			}
+			return null;
+		}, new ArrayList<>());
+		return images;
+	}
+
 	private Commandline newDocker(@Nullable String dockerSock) {
 		var docker = new Commandline(Agent.dockerPath);
 		DockerExecutorUtils.useDockerSock(docker, dockerSock);
@@ -521,36 +708,52 @@ public class AgentSocket implements Runnable {
 		var dockerSock = jobData.getDockerSock();
 
 		Client client = ClientBuilder.newClient();
+		JobLogger jobLogger = new JobLogger(session, jobData.getJobToken());
 		jobThreads.put(jobData.getJobToken(), Thread.currentThread());
 		buildHomes.put(jobData.getJobToken(), hostBuildHome);
 		if (dockerSock != null)
 			dockerSocks.put(jobData.getJobToken(), dockerSock);
+		Future<?> networkDeletion = null;
 		try {
-			TaskLogger jobLogger = new TaskLogger() {
-
-				@Override
-				public void log(String message, String sessionId) {
-					Agent.log(session, jobData.getJobToken(), message, sessionId);
-				}
-				
-			};
+			var networkLease = NetworkPool.lease(newDocker(dockerSock), jobData.getNetworkOptions(),
+					jobData.getJobToken(), jobLogger);
+			String network;
+			if (networkLease != null) {
+				network = networkLease.getNetwork();
+				jobLogger.log("Using pooled docker network '" + network + "'...");
+			} else {
+				network = jobData.getExecutorName() + "-" + jobData.getProjectId() + "-"
+						+ jobData.getBuildNumber() + "-" + jobData.getRetried();
+				jobLogger.log("Creating docker network '" + network + "'...");
+
+				createNetwork(newDocker(dockerSock), network, jobData.getNetworkOptions(), jobLogger);
+			}
 
-			String network = jobData.getExecutorName() + "-" + jobData.getProjectId() + "-"
-					+ jobData.getBuildNumber() + "-" + jobData.getRetried();
-			jobLogger.log("Creating docker network '" + network + "'...");
-			
-			createNetwork(newDocker(dockerSock), network, jobData.getNetworkOptions(), jobLogger);
+			var imagePrefetcher = new ImagePrefetcher(() -> newDocker(dockerSock), jobData.getRegistryLogins(),
+					jobData.isAlwaysPullImage(), jobLogger);
 			try {
-				var docker = newDocker(dockerSock);
-				for (var jobService: jobData.getServices()) {
-					var builtInRegistryLogin = new BuiltInRegistryLogin(jobData.getBuiltInRegistryUrl(),
-							jobData.getJobToken(), jobService.getBuiltInRegistryAccessToken());
-					callWithDockerConfig(docker, jobData.getRegistryLogins(), builtInRegistryLogin, () -> {
-						startService(docker, network, jobService, Agent.osInfo, jobData.getImageMappings(),
-								jobData.getCpuLimit(), jobData.getMemoryLimit(), jobLogger);
+				imagePrefetcher.prefetch(getImages(jobData), Bootstrap.executorService);
+
+				var services = jobData.getServices();
+				List<Callable<Void>> serviceStarters = new ArrayList<>();
+				for (var jobService: services) {
+					serviceStarters.add(() -> {
+						imagePrefetcher.await(map(jobData.getImageMappings(), jobService.getImage()));
+						var docker = newDocker(dockerSock);
+						var builtInRegistryLogin = new BuiltInRegistryLogin(jobData.getBuiltInRegistryUrl(),
+								jobData.getJobToken(), jobService.getBuiltInRegistryAccessToken());
+						// Tell apart log of services started concurrently
+						var serviceLogger = services.size() > 1?
+								new PrefixedTaskLogger(jobLogger, "[" + jobService.getName() + "] "): jobLogger;
+						callWithDockerConfig(docker, jobData.getRegistryLogins(), builtInRegistryLogin, () -> {
+							startService(docker, network, jobService, Agent.osInfo, jobData.getImageMappings(),
+									jobData.getCpuLimit(), jobData.getMemoryLimit(), serviceLogger);
+							return null;
+						});
 						return null;
 					});
 				}
+				ExecutorUtils.runConcurrently(serviceStarters, MAX_CONCURRENT_SERVICES, Bootstrap.executorService);
 
 				File hostWorkspace = new File(hostBuildHome, "workspace");
 				File hostUserHome = new File(hostBuildHome, "user");
@@ -582,7 +785,8 @@ public class AgentSocket implements Runnable {
 					new Message(MessageTypes.REPORT_JOB_WORKSPACE, messageData).sendBy(session);
 
 					CompositeFacade entryFacade = new CompositeFacade(jobData.getActions());
-					var ownerChanged = new AtomicBoolean(false);
+					// Owner build home is changed to, or null if owned by agent
+					var currentOwner = new AtomicReference<String>(null);
 					var successful = entryFacade.execute(new LeafHandler() {
 
 						private int runStepContainer(Commandline docker, String image, @Nullable String runAs,
@@ -590,7 +794,7 @@ public class AgentSocket implements Runnable {
 													 Map<String, String> environments, @Nullable String workingDir,
 													 Map<String, String> volumeMounts, List<Integer> position,
 													 boolean useTTY) {
-							image = map(jobData.getImageMappings(), image);
+							image = imagePrefetcher.pin(docker, map(jobData.getImageMappings(), image));
 
 							String containerName = network + "-step-" + stringifyStepPosition(position);
 							containerNames.put(jobData.getJobToken(), containerName);
@@ -599,8 +803,9 @@ public class AgentSocket implements Runnable {
 								docker.clearArgs();
 
 								docker.addArgs("run", "--name=" + containerName, "--network=" + network);
+								// Pinned image was pulled at its first use in the job
 								if (jobData.isAlwaysPullImage())
-									docker.addArgs("--pull=always");
+									docker.addArgs("--pull=never");
 								if (runAs != null)
 									docker.addArgs("--user", runAs);
 								else if (!SystemUtils.IS_OS_WINDOWS)
@@ -681,9 +886,18 @@ public class AgentSocket implements Runnable {
 						}
 
 						private boolean doExecute(LeafFacade facade, List<Integer> position) {
-							if (ownerChanged.get() && !isInDocker()) {
+							String runAs;
+							if (facade instanceof CommandFacade)
+								runAs = ((CommandFacade) facade).getRunAs();
+							else if (facade instanceof RunContainerFacade)
+								runAs = ((RunContainerFacade) facade).getRunAs();
+							else
+								runAs = null;
+
+							// Consecutive steps running as same user do not need to change owner back and forth
+							if (currentOwner.get() != null && !currentOwner.get().equals(runAs) && !isInDocker()) {
 								changeOwner(hostBuildHome, getOwner(), newDocker(dockerSock), false);
-								ownerChanged.set(false);
+								currentOwner.set(null);
 							}
 
 							if (facade instanceof CommandFacade) {
@@ -697,8 +911,10 @@ public class AgentSocket implements Runnable {
 										jobData.getJobToken(), commandFacade.getBuiltInRegistryAccessToken());
 
 								var docker = newDocker(dockerSock);
-								if (changeOwner(hostBuildHome, commandFacade.getRunAs(), docker, isInDocker()))
-									ownerChanged.set(true);
+								if (runAs != null && !runAs.equals(currentOwner.get())
+										&& changeOwner(hostBuildHome, runAs, docker, isInDocker())) {
+									currentOwner.set(runAs);
+								}
 
 								docker.clearArgs();
 								int exitCode = callWithDockerConfig(docker, jobData.getRegistryLogins(), builtInRegistryLogin, () -> {
@@ -747,8 +963,10 @@ public class AgentSocket implements Runnable {
 										jobData.getJobToken(), runContainerFacade.getBuiltInRegistryAccessToken());
 
 								var docker = newDocker(dockerSock);
-								if (changeOwner(hostBuildHome, runContainerFacade.getRunAs(), docker, Bootstrap.isInDocker()))
-									ownerChanged.set(true);
+								if (runAs != null && !runAs.equals(currentOwner.get())
+										&& changeOwner(hostBuildHome, runAs, docker, Bootstrap.isInDocker())) {
+									currentOwner.set(runAs);
+								}
 
 								docker.clearArgs();
 								int exitCode = callWithDockerConfig(docker, jobData.getRegistryLogins(), builtInRegistryLogin, () -> {
@@ -827,7 +1045,20 @@ public class AgentSocket implements Runnable {
 						FileUtils.deleteDir(hostWorkspace);
 				}
 			} finally {
-				deleteNetwork(newDocker(dockerSock), network, jobLogger);
+				imagePrefetcher.close();
+				// Delete network while build home is being deleted
+				networkDeletion = Bootstrap.executorService.submit(() -> {
+					long time = System.currentTimeMillis();
+					if (networkLease != null) {
+						networkLease.release(jobLogger);
+						jobLogger.log("Docker network '" + network + "' returned to pool ("
+								+ formatDuration(System.currentTimeMillis() - time) + ")");
+					} else {
+						deleteNetwork(newDocker(dockerSock), network, jobLogger);
+						jobLogger.log("Docker network '" + network + "' deleted ("
+								+ formatDuration(System.currentTimeMillis() - time) + ")");
+					}
+				});
 			}
 		} finally {
 			jobThreads.remove(jobData.getJobToken());
@@ -836,25 +1067,28 @@ public class AgentSocket implements Runnable {
 				dockerSocks.remove(jobData.getJobToken());
 			client.close();
 			
-			synchronized (hostBuildHome) {
-				deleteDir(hostBuildHome, newDocker(dockerSock), Agent.isInDocker());
+			try {
+				synchronized (hostBuildHome) {
+					deleteDir(hostBuildHome, newDocker(dockerSock), Agent.isInDocker());
+				}
+			} finally {
+				try {
+					if (networkDeletion != null)
+						Uninterruptibles.getUninterruptibly(networkDeletion);
+				} catch (ExecutionException e) {
+					throw ExceptionUtils.unchecked((Exception) e.getCause());
+				} finally {
+					jobLogger.close();
+				}
 			}
 		}
 	}
 		
 	private void testShellExecutor(Session session, TestShellJobData jobData) {
 		Client client = ClientBuilder.newClient();
+		JobLogger jobLogger = new JobLogger(session, jobData.getJobToken());
 		jobThreads.put(jobData.getJobToken(), Thread.currentThread());
 		try {
-			TaskLogger jobLogger = new TaskLogger() {
-
-				@Override
-				public void log(String message, String sessionId) {
-					Agent.log(session, jobData.getJobToken(), message, sessionId);
-				}
-				
-			};
-			
 			jobLogger.log(String.format("Connecting to server '%s'...", Agent.serverUrl));
 			WebTarget target = client.target(Agent.serverUrl)
 					.path("~api/k8s/test")
@@ -868,6 +1102,7 @@ public class AgentSocket implements Runnable {
 		} finally {
 			jobThreads.remove(jobData.getJobToken());
 			client.close();
+			jobLogger.close();
 		}		
 	}
 	
@@ -879,17 +1114,9 @@ public class AgentSocket implements Runnable {
 			File authInfoDir = null;
 
 			Client client = ClientBuilder.newClient();
+			JobLogger jobLogger = new JobLogger(session, jobData.getJobToken());
 			jobThreads.put(jobData.getJobToken(), Thread.currentThread());
 			try {
-				TaskLogger jobLogger = new TaskLogger() {
-
-					@Override
-					public void log(String message, String sessionId) {
-						Agent.log(session, jobData.getJobToken(), message, sessionId);
-					}
-
-				};
-
 				workspaceDir = FileUtils.createTempDir("workspace");
 				authInfoDir = FileUtils.createTempDir();
 
@@ -967,18 +1194,52 @@ public class AgentSocket implements Runnable {
 					FileUtils.deleteDir(authInfoDir);
 				if (workspaceDir != null)
 					FileUtils.deleteDir(workspaceDir);
+				jobLogger.close();
 			}
 			return null;
 		});
 	}
 	
+	private void serviceRequest(Callable<CallData> requestReader) {
+		try {
+			CallData request = requestReader.call();
+			CallData response = new CallData(request.getUuid(), service(request.getPayload()));
+			// Interruption of a cancelled job should not prevent its result being sent
+			Thread.interrupted();
+			Session responseSession = session;
+			if (!responseSession.isOpen() && Capabilities.isEnabled(responseSession, Capabilities.SESSION_RESUME)) {
+				responseSession = waitForCurrentSession(RESUME_TIMEOUT);
+				if (responseSession == null || !Capabilities.isEnabled(responseSession, Capabilities.SESSION_RESUME)) {
+					logger.warn("Unable to resume session, discarding result of request " + request.getUuid());
+					return;
+				}
+				JobLogger.resumeAll();
+			}
+			// Make sure job logs queued so far reach server before job result
+			Session bulkSession = BulkConnection.of(responseSession);
+			if (bulkSession != null) {
+				OutboundQueue bulkQueue = OutboundQueue.of(bulkSession);
+				if (bulkQueue != null)
+					bulkQueue.flush();
+			}
+			OutboundQueue queue = OutboundQueue.of(responseSession);
+			if (queue != null) 
+				queue.flush();
+			WebsocketUtils.sendCallData(responseSession, MessageTypes.RESPONSE, response);
+		} catch (Exception e) {
+			logger.error("Error handling websocket request", e);
+		}
+	}
+	
 	private Serializable service(Serializable request) {
 		try {
 			if (request instanceof LogRequest) { 
-				return (Serializable) LogRequest.readLog(new File(Agent.installDir, "logs/agent.log"));
+				return new LogLines(new File(Agent.installDir, "logs/agent.log"));
 			} else if (request instanceof DockerJobData) { 
+				DockerJobData jobData = (DockerJobData) request;
 				try {
-					return executeDockerJob(session, (DockerJobData) request);
+					return jobRegistry.execute(jobData.getJobToken(), jobData.getRetried(),
+							() -> executeDockerJob(session, jobData));
 				} catch (Exception e) {
 					return e;
 				}
@@ -990,8 +1251,11 @@ public class AgentSocket implements Runnable {
 					return e;
 				}
 			} else if (request instanceof ShellJobData) { 
+				ShellJobData jobData = (ShellJobData) request;
+				// Shell job data carries no retry count, failed runs are not remembered anyway
 				try {
-					return executeShellJob(session, (ShellJobData) request);
+					return jobRegistry.execute(jobData.getJobToken(), 0,
+							() -> executeShellJob(session, jobData));
 				} catch (Exception e) {
 					return e;
 				}
@@ -1012,40 +1276,31 @@ public class AgentSocket implements Runnable {
 	}
 	
 	static void sendOutput(String sessionId, Session agentSession, String output) {
-		new Message(MessageTypes.SHELL_OUTPUT, sessionId + ":" + output).sendBy(agentSession);
+		sendShellStream(MessageTypes.SHELL_OUTPUT, sessionId, agentSession, output);
 	}
 
 	static void sendError(String sessionId, Session agentSession, String error) {
-		new Message(MessageTypes.SHELL_ERROR, sessionId + ":" + error).sendBy(agentSession);
+		sendShellStream(MessageTypes.SHELL_ERROR, sessionId, agentSession, error);
+	}
+	
+	private static void sendShellStream(MessageTypes type, String sessionId, Session agentSession, String text) {
+		Channels channels = Channels.of(agentSession);
+		if (channels != null) {
+			byte[] bytes = text.getBytes(UTF_8);
+			BinaryWriter writer = new BinaryWriter(bytes.length + 5);
+			writer.writeVarInt(channels.announce(sessionId));
+			writer.writeBytes(bytes, 0, bytes.length);
+			new Message(type, writer.toByteBuffer()).sendBy(agentSession);
+		} else {
+			new Message(type, sessionId + ":" + text).sendBy(agentSession);
+		}
 	}
 
     @OnWebSocketError
     public void onError(Throwable t) {
     	if (!Agent.logExpectedError(t, logger))
     		logger.error("Websocket error", t);
-    	Agent.reconnect = true;
+    	Agent.requestReconnect();
     }
     
-	@Override
-	public void run() {
-		Message message = new Message(MessageTypes.HEART_BEAT, new byte[0]);
-		while (true) {
-			try {
-				Thread.sleep(Agent.SOCKET_IDLE_TIMEOUT/3);
-			} catch (InterruptedException e) {
-				break;
-			}
-			try {
-				message.sendBy(session);
-			} catch (Exception e) {
-				logger.error("Error pinging server", e);
-				try {
-					session.disconnect();
-				} catch (Exception e2) {
-				}
-			}
-		}
-		stopped = true;
-	}
-	
 }
\ No newline at end of file
@@ -0,0 +1,578 @@
+package io.onedev.agent;
+
+import io.onedev.agent.job.*;
+import io.onedev.k8shelper.Action;
+import io.onedev.k8shelper.OsInfo;
+import io.onedev.k8shelper.ServiceFacade;
+import org.apache.commons.lang3.SerializationUtils;
+
+import javax.annotation.Nullable;
+import java.io.Externalizable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact tagged encoding for payloads exchanged with server. Agent protocol classes are
+ * written field by field explicitly. Other serializable classes of OneDev such as k8s helper
+ * facades are written field by field via reflection, with class name and field names written
+ * once per payload, so that server and agent may use different versions of them like with Java
+ * serialization, provided they have a no-arg constructor. Anything else (exceptions, classes
+ * with custom serialization, etc.) is embedded as a Java serialized blob so that every
+ * serializable payload can still be carried.
+ */
+public class BinaryPayloadCodec implements PayloadCodec {
+
+	public static final BinaryPayloadCodec INSTANCE = new BinaryPayloadCodec();
+
+	private static final int MAGIC = 0xB1;
+
+	private static final int VERSION = 1;
+
+	private static final int NULL = 0;
+
+	private static final int STRING = 1;
+
+	private static final int TRUE = 2;
+
+	private static final int FALSE = 3;
+
+	private static final int INTEGER = 4;
+
+	private static final int LONG = 5;
+
+	private static final int LIST = 6;
+
+	private static final int MAP = 7;
+
+	private static final int CALL_DATA = 8;
+
+	private static final int AGENT_DATA = 9;
+
+	private static final int SHELL_JOB_DATA = 10;
+
+	private static final int DOCKER_JOB_DATA = 11;
+
+	private static final int TEST_SHELL_JOB_DATA = 12;
+
+	private static final int TEST_DOCKER_JOB_DATA = 13;
+
+	private static final int REGISTRY_LOGIN = 14;
+
+	private static final int IMAGE_MAPPING = 15;
+
+	private static final int LOG_REQUEST = 16;
+
+	private static final int WANT_TO_DISCONNECT_AGENT = 17;
+
+	private static final int WAITING_FOR_AGENT_RESOURCE = 18;
+
+	private static final int OBJECT = 19;
+
+	private static final int ENUM = 20;
+
+	private static final int SYMBOL = 21;
+
+	private static final int JAVA = 127;
+
+	private static final String REFLECTIVE_PACKAGE_PREFIX = "io.onedev.";
+
+	private static final int MAX_READ_LAYOUTS = 1000;
+
+	// Short strings such as image names and environment names tend to repeat across steps
+	private static final int MAX_SYMBOL_LENGTH = 64;
+
+	private static final int STREAM_BUFFER_SIZE = 64*1024;
+
+	private static final Map<Class<?>, Optional<ObjectLayout>> layouts = new ConcurrentHashMap<>();
+
+	// Keyed by descriptor written by peer, which may list fields different from local classes
+	private static final Map<String, ObjectLayout> readLayouts = new ConcurrentHashMap<>();
+
+	@Override
+	public String getName() {
+		return Capabilities.BINARY_CODEC;
+	}
+
+	@Override
+	public byte[] encode(Serializable payload) {
+		BinaryWriter writer = new BinaryWriter();
+		writer.writeByte(MAGIC).writeByte(VERSION);
+		writeValue(writer, payload);
+		return writer.toByteArray();
+	}
+
+	@Override
+	public boolean accepts(ByteBuffer data) {
+		return data.remaining() >= 2 && (data.get(data.position()) & 0xFF) == MAGIC;
+	}
+
+	/**
+	 * Encode into specified stream as values are being written, without holding the whole
+	 * encoded payload in memory
+	 */
+	@Override
+	public void encode(Serializable payload, OutputStream output) {
+		BinaryWriter writer = new BinaryWriter(output, STREAM_BUFFER_SIZE);
+		writer.writeByte(MAGIC).writeByte(VERSION);
+		writeValue(writer, payload);
+		writer.flush();
+	}
+
+	@Override
+	public Serializable decode(ByteBuffer data) {
+		return decode(new BinaryReader(data.duplicate()));
+	}
+
+	/**
+	 * Decode payload as it is being read from specified stream
+	 */
+	public Serializable decode(InputStream input) {
+		return decode(new BinaryReader(input));
+	}
+
+	private Serializable decode(BinaryReader reader) {
+		if (reader.readByte() != MAGIC)
+			throw new IllegalStateException("Not a binary encoded payload");
+		int version = reader.readByte();
+		if (version != VERSION)
+			throw new IllegalStateException("Unsupported binary payload version: " + version);
+		return (Serializable) readValue(reader);
+	}
+
+	private void writeValue(BinaryWriter writer, Object value) {
+		if (value == null) {
+			writer.writeByte(NULL);
+		} else if (value instanceof String) {
+			String stringValue = (String) value;
+			if (stringValue.length() <= MAX_SYMBOL_LENGTH)
+				writer.writeByte(SYMBOL).writeSymbol(stringValue);
+			else
+				writer.writeByte(STRING).writeString(stringValue);
+		} else if (value instanceof Boolean) {
+			writer.writeByte((Boolean) value? TRUE: FALSE);
+		} else if (value instanceof Integer) {
+			int intValue = (Integer) value;
+			writer.writeByte(INTEGER).writeVarInt((intValue << 1) ^ (intValue >> 31));
+		} else if (value instanceof Long) {
+			long longValue = (Long) value;
+			writer.writeByte(LONG).writeVarLong((longValue << 1) ^ (longValue >> 63));
+		} else if (value instanceof CallData) {
+			CallData callData = (CallData) value;
+			writer.writeByte(CALL_DATA).writeString(callData.getUuid());
+			writeValue(writer, callData.getPayload());
+		} else if (value instanceof AgentData) {
+			AgentData agentData = (AgentData) value;
+			writer.writeByte(AGENT_DATA);
+			writeValue(writer, agentData.getToken());
+			writeJava(writer, agentData.getOsInfo());
+			writeValue(writer, agentData.getName());
+			writeValue(writer, agentData.getIpAddress());
+			writer.writeVarInt(agentData.getCpus());
+			writeValue(writer, agentData.getAttributes());
+			writeValue(writer, agentData.getMetrics());
+		} else if (value instanceof DockerJobData) {
+			DockerJobData jobData = (DockerJobData) value;
+			writer.writeByte(DOCKER_JOB_DATA);
+			writeShellJobData(writer, jobData);
+			writer.writeVarInt(jobData.getRetried());
+			writeValue(writer, jobData.getServices());
+			writeValue(writer, jobData.getRegistryLogins());
+			writeValue(writer, jobData.getBuiltInRegistryUrl());
+			writeValue(writer, jobData.getImageMappings());
+			writeValue(writer, jobData.isMountDockerSock());
+			writeValue(writer, jobData.getDockerSock());
+			writeValue(writer, jobData.getDockerBuilder());
+			writeValue(writer, jobData.getCpuLimit());
+			writeValue(writer, jobData.getMemoryLimit());
+			writeValue(writer, jobData.getDockerOptions());
+			writeValue(writer, jobData.getNetworkOptions());
+			writeValue(writer, jobData.isAlwaysPullImage());
+		} else if (value instanceof ShellJobData) {
+			writer.writeByte(SHELL_JOB_DATA);
+			writeShellJobData(writer, (ShellJobData) value);
+		} else if (value instanceof TestShellJobData) {
+			TestShellJobData jobData = (TestShellJobData) value;
+			writer.writeByte(TEST_SHELL_JOB_DATA);
+			writeValue(writer, jobData.getJobToken());
+			writeValue(writer, jobData.getCommands());
+		} else if (value instanceof TestDockerJobData) {
+			TestDockerJobData jobData = (TestDockerJobData) value;
+			writer.writeByte(TEST_DOCKER_JOB_DATA);
+			writeValue(writer, jobData.getExecutorName());
+			writeValue(writer, jobData.getJobToken());
+			writeValue(writer, jobData.getDockerImage());
+			writeValue(writer, jobData.getDockerSock());
+			writeValue(writer, new ArrayList<>(jobData.getRegistryLogins()));
+			writeValue(writer, jobData.getBuiltInRegistryUrl());
+			writeValue(writer, jobData.getDockerOptions());
+		} else if (value instanceof RegistryLoginFacade) {
+			RegistryLoginFacade registryLogin = (RegistryLoginFacade) value;
+			writer.writeByte(REGISTRY_LOGIN);
+			writeValue(writer, registryLogin.getRegistryUrl());
+			writeValue(writer, registryLogin.getUserName());
+			writeValue(writer, registryLogin.getPassword());
+		} else if (value instanceof ImageMappingFacade) {
+			ImageMappingFacade imageMapping = (ImageMappingFacade) value;
+			writer.writeByte(IMAGE_MAPPING);
+			writeValue(writer, imageMapping.getFrom());
+			writeValue(writer, imageMapping.getTo());
+		} else if (value instanceof LogRequest) {
+			writer.writeByte(LOG_REQUEST);
+		} else if (value instanceof WantToDisconnectAgent) {
+			writer.writeByte(WANT_TO_DISCONNECT_AGENT);
+		} else if (value instanceof WaitingForAgentResourceToBeReleased) {
+			writer.writeByte(WAITING_FOR_AGENT_RESOURCE);
+		} else if (value instanceof LogLines) {
+			writer.writeByte(LIST);
+			((LogLines) value).read(writer::writeVarInt, line -> writeValue(writer, line));
+		} else if (value instanceof List && value.getClass().getName().startsWith("java.util.")) {
+			List<?> list = (List<?>) value;
+			writer.writeByte(LIST).writeVarInt(list.size());
+			for (Object element: list)
+				writeValue(writer, element);
+		} else if (value instanceof Map && value.getClass().getName().startsWith("java.util.")) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writer.writeByte(MAP).writeVarInt(map.size());
+			for (Map.Entry<?, ?> entry: map.entrySet()) {
+				writeValue(writer, entry.getKey());
+				writeValue(writer, entry.getValue());
+			}
+		} else if (value instanceof Enum && isReflective(((Enum<?>) value).getDeclaringClass())) {
+			Enum<?> enumValue = (Enum<?>) value;
+			writer.writeByte(ENUM).writeSymbol(enumValue.getDeclaringClass().getName()).writeSymbol(enumValue.name());
+		} else {
+			ObjectLayout layout = getLayout(value.getClass());
+			if (layout != null && layout.accepts(value)) {
+				writer.writeByte(OBJECT).writeSymbol(layout.descriptor);
+				for (Field field: layout.fields)
+					writeValue(writer, layout.get(field, value));
+			} else {
+				writeJava(writer, (Serializable) value);
+			}
+		}
+	}
+
+	private void writeShellJobData(BinaryWriter writer, ShellJobData jobData) {
+		writeValue(writer, jobData.getJobToken());
+		writeValue(writer, jobData.getExecutorName());
+		writeValue(writer, jobData.getProjectPath());
+		writeValue(writer, jobData.getProjectId());
+		writeValue(writer, jobData.getRefName());
+		writeValue(writer, jobData.getCommitHash());
+		writeValue(writer, jobData.getBuildNumber());
+		writeValue(writer, jobData.getActions());
+	}
+
+	/*
+	 * Whole object graph is written into a single stream so that class descriptors of
+	 * nested facades are only written once
+	 */
+	private void writeJava(BinaryWriter writer, Serializable value) {
+		if (value != null)
+			writer.writeByte(JAVA).writeBlob(SerializationUtils.serialize(value));
+		else
+			writer.writeByte(NULL);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readValue(BinaryReader reader) {
+		int tag = reader.readByte();
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return reader.readString();
+			case SYMBOL:
+				return reader.readSymbol();
+			case TRUE:
+				return true;
+			case FALSE:
+				return false;
+			case INTEGER:
+				int intValue = reader.readVarInt();
+				return (intValue >>> 1) ^ -(intValue & 1);
+			case LONG:
+				long longValue = reader.readVarLong();
+				return (longValue >>> 1) ^ -(longValue & 1);
+			case LIST:
+				int size = reader.readVarInt();
+				List<Object> list = new ArrayList<>(size);
+				for (int i=0; i<size; i++)
+					list.add(readValue(reader));
+				return list;
+			case MAP:
+				size = reader.readVarInt();
+				Map<Object, Object> map = new LinkedHashMap<>();
+				for (int i=0; i<size; i++)
+					map.put(readValue(reader), readValue(reader));
+				return map;
+			case CALL_DATA:
+				String uuid = reader.readString();
+				return new CallData(uuid, (Serializable) readValue(reader));
+			case AGENT_DATA:
+				String token = (String) readValue(reader);
+				OsInfo osInfo = (OsInfo) readValue(reader);
+				String name = (String) readValue(reader);
+				String ipAddress = (String) readValue(reader);
+				int cpus = reader.readVarInt();
+				Map<String, String> attributes = (Map<String, String>) readValue(reader);
+				Map<String, Long> metrics = (Map<String, Long>) readValue(reader);
+				return new AgentData(token, osInfo, name, ipAddress, cpus, attributes, metrics);
+			case SHELL_JOB_DATA:
+				return new ShellJobData((String) readValue(reader), (String) readValue(reader),
+						(String) readValue(reader), (Long) readValue(reader), (String) readValue(reader),
+						(String) readValue(reader), (Long) readValue(reader), (List<Action>) readValue(reader));
+			case DOCKER_JOB_DATA:
+				String jobToken = (String) readValue(reader);
+				String executorName = (String) readValue(reader);
+				String projectPath = (String) readValue(reader);
+				Long projectId = (Long) readValue(reader);
+				String refName = (String) readValue(reader);
+				String commitHash = (String) readValue(reader);
+				Long buildNumber = (Long) readValue(reader);
+				List<Action> actions = (List<Action>) readValue(reader);
+				int retried = reader.readVarInt();
+				List<ServiceFacade> services = (List<ServiceFacade>) readValue(reader);
+				List<RegistryLoginFacade> registryLogins = (List<RegistryLoginFacade>) readValue(reader);
+				String builtInRegistryUrl = (String) readValue(reader);
+				List<ImageMappingFacade> imageMappings = (List<ImageMappingFacade>) readValue(reader);
+				boolean mountDockerSock = (Boolean) readValue(reader);
+				String dockerSock = (String) readValue(reader);
+				String dockerBuilder = (String) readValue(reader);
+				String cpuLimit = (String) readValue(reader);
+				String memoryLimit = (String) readValue(reader);
+				String dockerOptions = (String) readValue(reader);
+				String networkOptions = (String) readValue(reader);
+				boolean alwaysPullImage = (Boolean) readValue(reader);
+				return new DockerJobData(jobToken, executorName, projectPath, projectId, refName, commitHash,
+						buildNumber, actions, retried, services, registryLogins, builtInRegistryUrl,
+						imageMappings, mountDockerSock, dockerSock, dockerBuilder, cpuLimit, memoryLimit,
+						dockerOptions, networkOptions, alwaysPullImage);
+			case TEST_SHELL_JOB_DATA:
+				return new TestShellJobData((String) readValue(reader), (String) readValue(reader));
+			case TEST_DOCKER_JOB_DATA:
+				return new TestDockerJobData((String) readValue(reader), (String) readValue(reader),
+						(String) readValue(reader), (String) readValue(reader),
+						(List<RegistryLoginFacade>) readValue(reader), (String) readValue(reader),
+						(String) readValue(reader));
+			case REGISTRY_LOGIN:
+				return new RegistryLoginFacade((String) readValue(reader), (String) readValue(reader),
+						(String) readValue(reader));
+			case IMAGE_MAPPING:
+				return new ImageMappingFacade((String) readValue(reader), (String) readValue(reader));
+			case LOG_REQUEST:
+				return new LogRequest();
+			case WANT_TO_DISCONNECT_AGENT:
+				return new WantToDisconnectAgent();
+			case WAITING_FOR_AGENT_RESOURCE:
+				return new WaitingForAgentResourceToBeReleased();
+			case OBJECT:
+				ObjectLayout layout = getReadLayout(reader.readSymbol());
+				Object object = layout.newInstance();
+				for (Field field: layout.fields) {
+					Object fieldValue = readValue(reader);
+					// Field not existing locally
+					if (field != null)
+						layout.set(field, object, fieldValue);
+				}
+				return object;
+			case ENUM:
+				Class<?> enumClass = loadReflectiveClass(reader.readSymbol());
+				if (!enumClass.isEnum())
+					throw new IllegalStateException("Not an enum class: " + enumClass.getName());
+				return Enum.valueOf((Class) enumClass, reader.readSymbol());
+			case JAVA:
+				return JavaPayloadCodec.INSTANCE.decode(reader.readBlob());
+			default:
+				throw new IllegalStateException("Unexpected binary payload tag: " + tag);
+		}
+	}
+
+	private static boolean isReflective(Class<?> clazz) {
+		return clazz.getName().startsWith(REFLECTIVE_PACKAGE_PREFIX);
+	}
+
+	private static Class<?> loadReflectiveClass(String className) {
+		if (!className.startsWith(REFLECTIVE_PACKAGE_PREFIX))
+			throw new IllegalStateException("Unexpected class in binary payload: " + className);
+		try {
+			return Class.forName(className, false, BinaryPayloadCodec.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Class not found: " + className, e);
+		}
+	}
+
+	/**
+	 * @return layout to write specified class field by field, or <tt>null</tt> if it should be
+	 * written via Java serialization
+	 */
+	@Nullable
+	private static ObjectLayout getLayout(Class<?> clazz) {
+		return layouts.computeIfAbsent(clazz, it -> Optional.ofNullable(newLayout(it))).orElse(null);
+	}
+
+	@Nullable
+	private static ObjectLayout newLayout(Class<?> clazz) {
+		if (!isReflective(clazz) || !Serializable.class.isAssignableFrom(clazz)
+				|| Externalizable.class.isAssignableFrom(clazz) || clazz.isEnum()
+				|| Modifier.isAbstract(clazz.getModifiers())) {
+			return null;
+		}
+
+		// Fields of serializable super classes come first, same as Java serialization
+		List<Class<?>> hierarchy = new ArrayList<>();
+		for (Class<?> current = clazz; current != null && Serializable.class.isAssignableFrom(current); current = current.getSuperclass())
+			hierarchy.add(0, current);
+
+		Map<String, Field> fields = new LinkedHashMap<>();
+		for (Class<?> current: hierarchy) {
+			if (hasCustomSerialization(current))
+				return null;
+			Field[] declaredFields = current.getDeclaredFields();
+			Arrays.sort(declaredFields, Comparator.comparing(Field::getName));
+			for (Field field: declaredFields) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers))
+					continue;
+				Class<?> type = field.getType();
+				if (type.isPrimitive() && type != boolean.class && type != int.class && type != long.class)
+					return null;
+				// Shadowed fields can not be identified by name
+				if (fields.put(field.getName(), field) != null)
+					return null;
+			}
+		}
+
+		try {
+			// Classes without no-arg constructor are written via Java serialization
+			Constructor<?> constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			for (Field field: fields.values())
+				field.setAccessible(true);
+			String descriptor = clazz.getName() + ":" + String.join(",", fields.keySet());
+			return new ObjectLayout(descriptor, constructor, fields.values().toArray(new Field[0]));
+		} catch (NoSuchMethodException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static boolean hasCustomSerialization(Class<?> clazz) {
+		for (Method method: clazz.getDeclaredMethods()) {
+			switch (method.getName()) {
+				case "writeObject":
+				case "readObject":
+				case "readObjectNoData":
+				case "writeReplace":
+				case "readResolve":
+					return true;
+			}
+		}
+		for (Field field: clazz.getDeclaredFields()) {
+			if (field.getName().equals("serialPersistentFields"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param descriptor class name followed by names of fields in the order they are written
+	 */
+	private static ObjectLayout getReadLayout(String descriptor) {
+		ObjectLayout readLayout = readLayouts.get(descriptor);
+		if (readLayout == null) {
+			int index = descriptor.indexOf(':');
+			if (index == -1)
+				throw new IllegalStateException("Malformed object descriptor: " + descriptor);
+			Class<?> clazz = loadReflectiveClass(descriptor.substring(0, index));
+			ObjectLayout layout = getLayout(clazz);
+			if (layout == null)
+				throw new IllegalStateException("Class can not be decoded field by field: " + clazz.getName());
+			Map<String, Field> localFields = new HashMap<>();
+			for (Field field: layout.fields)
+				localFields.put(field.getName(), field);
+			String fieldNames = descriptor.substring(index + 1);
+			List<Field> fields = new ArrayList<>();
+			if (fieldNames.length() != 0) {
+				for (String fieldName: fieldNames.split(","))
+					fields.add(localFields.get(fieldName));
+			}
+			readLayout = new ObjectLayout(descriptor, layout.constructor, fields.toArray(new Field[0]));
+			// Descriptors come from peer, do not let them grow unbounded
+			if (readLayouts.size() < MAX_READ_LAYOUTS)
+				readLayouts.put(descriptor, readLayout);
+		}
+		return readLayout;
+	}
+
+	private static class ObjectLayout {
+
+		private final String descriptor;
+
+		private final Constructor<?> constructor;
+
+		private final Field[] fields;
+
+		ObjectLayout(String descriptor, Constructor<?> constructor, Field[] fields) {
+			this.descriptor = descriptor;
+			this.constructor = constructor;
+			this.fields = fields;
+		}
+
+		/**
+		 * Check that values of all fields can be assigned back after decoding, as lists and
+		 * maps are decoded as {@link ArrayList} and {@link LinkedHashMap}
+		 */
+		boolean accepts(Object object) {
+			for (Field field: fields) {
+				Object value = get(field, object);
+				Class<?> decodedClass;
+				if (value == null || field.getType().isPrimitive())
+					continue;
+				else if (value instanceof List && value.getClass().getName().startsWith("java.util."))
+					decodedClass = ArrayList.class;
+				else if (value instanceof Map && value.getClass().getName().startsWith("java.util."))
+					decodedClass = LinkedHashMap.class;
+				else
+					decodedClass = value.getClass();
+				if (!field.getType().isAssignableFrom(decodedClass))
+					return false;
+			}
+			return true;
+		}
+
+		Object get(Field field, Object object) {
+			try {
+				return field.get(object);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void set(Field field, Object object, @Nullable Object value) {
+			try {
+				field.set(object, value);
+			} catch (IllegalAccessException | IllegalArgumentException e) {
+				throw new IllegalStateException("Error decoding field '" + field.getName() + "' of class '"
+						+ field.getDeclaringClass().getName() + "'", e);
+			}
+		}
+
+		Object newInstance() {
+			try {
+				return constructor.newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Error instantiating object (descriptor: " + descriptor + ")", e);
+			}
+		}
+
+	}
+
+}
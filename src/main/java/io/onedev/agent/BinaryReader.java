@@ -0,0 +1,175 @@
+package io.onedev.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads data written by {@link BinaryWriter}. Reading advances position of the underlying
+ * buffer
+ */
+public class BinaryReader {
+
+	private static final int MIN_FILL_CAPACITY = 8192;
+
+	private ByteBuffer buffer;
+
+	private final InputStream input;
+
+	private List<String> symbols;
+
+	public BinaryReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+		input = null;
+	}
+
+	/**
+	 * Read from specified stream. Bytes are pulled into an internal buffer only when needed,
+	 * so that data can be decoded while the stream is still receiving it
+	 */
+	public BinaryReader(InputStream input) {
+		this.input = input;
+		buffer = ByteBuffer.allocate(0);
+	}
+
+	/**
+	 * Pull bytes from input stream until specified number of bytes are available, or the
+	 * stream ends. Buffer grows with bytes actually received instead of the requested length,
+	 * so that a malformed length does not allocate more than the stream holds
+	 */
+	private void fill(int length) {
+		if (input == null)
+			return;
+		try {
+			while (buffer.remaining() < length) {
+				if (buffer.limit() == buffer.capacity()) {
+					if (length > buffer.capacity()) {
+						int capacity = Math.max(MIN_FILL_CAPACITY, Math.min(length, buffer.capacity()*2));
+						ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+						newBuffer.put(buffer).flip();
+						buffer = newBuffer;
+					} else {
+						buffer.compact().flip();
+					}
+				}
+				int count = input.read(buffer.array(), buffer.limit(), buffer.capacity() - buffer.limit());
+				if (count < 0)
+					return;
+				buffer.limit(buffer.limit() + count);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean hasRemaining() {
+		fill(1);
+		return buffer.hasRemaining();
+	}
+
+	public int readByte() {
+		fill(1);
+		return buffer.get() & 0xFF;
+	}
+
+	public int readVarInt() {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			fill(1);
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+
+	public long readVarLong() {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			fill(1);
+			long b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalStateException("Malformed varlong");
+	}
+
+	/**
+	 * @return slice of underlying buffer holding the next length-prefixed blob. No data is copied
+	 * unless reading from a stream, as the internal buffer is reused for subsequent reads then
+	 */
+	public ByteBuffer readBlob() {
+		ByteBuffer blob = readSlice();
+		if (input != null) {
+			ByteBuffer copy = ByteBuffer.allocate(blob.remaining());
+			copy.put(blob).flip();
+			return copy;
+		} else {
+			return blob;
+		}
+	}
+
+	private ByteBuffer readSlice() {
+		int length = readVarInt();
+		if (length >= 0)
+			fill(length);
+		if (length < 0 || length > buffer.remaining())
+			throw new IllegalStateException("Malformed blob length: " + length);
+		ByteBuffer blob = buffer.slice();
+		blob.limit(length);
+		buffer.position(buffer.position() + length);
+		return blob;
+	}
+
+	public String readString() {
+		ByteBuffer blob = readSlice();
+		if (blob.hasArray())
+			return new String(blob.array(), blob.arrayOffset() + blob.position(), blob.remaining(), UTF_8);
+		else
+			return UTF_8.decode(blob).toString();
+	}
+
+	/**
+	 * Read a string written by {@link BinaryWriter#writeSymbol(String)}
+	 */
+	public String readSymbol() {
+		if (symbols == null)
+			symbols = new ArrayList<>();
+		int index = readVarInt();
+		if (index == 0) {
+			String symbol = readString();
+			symbols.add(symbol);
+			return symbol;
+		} else if (index <= symbols.size()) {
+			return symbols.get(index - 1);
+		} else {
+			throw new IllegalStateException("Malformed symbol index: " + index);
+		}
+	}
+
+	/**
+	 * @return remaining content as a slice, and advance to the end
+	 */
+	public ByteBuffer readRemaining() {
+		int available;
+		do {
+			available = buffer.remaining();
+			fill(available + 1);
+		} while (buffer.remaining() > available);
+		ByteBuffer remaining = buffer.slice();
+		buffer.position(buffer.limit());
+		return remaining;
+	}
+
+}
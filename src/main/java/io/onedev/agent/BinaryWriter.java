@@ -0,0 +1,180 @@
+package io.onedev.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Growable byte sink with varint and length-prefixed string support, used by compact
+ * binary encodings exchanged with server.
+ */
+public class BinaryWriter {
+
+	private byte[] bytes;
+
+	private int size;
+
+	private Map<String, Integer> symbols;
+
+	private final OutputStream output;
+
+	public BinaryWriter() {
+		this(256);
+	}
+
+	public BinaryWriter(int initialCapacity) {
+		bytes = new byte[Math.max(initialCapacity, 16)];
+		output = null;
+	}
+
+	/**
+	 * Write to specified stream. Content is buffered up to specified size and then passed
+	 * to the stream, so that the whole content never needs to be held in memory. Call
+	 * {@link #flush()} to pass the remaining buffered content when done
+	 */
+	public BinaryWriter(OutputStream output, int bufferSize) {
+		bytes = new byte[Math.max(bufferSize, 16)];
+		this.output = output;
+	}
+
+	private void ensureCapacity(int additional) {
+		int required = size + additional;
+		if (required < 0)
+			throw new IllegalStateException("Binary payload too large");
+		if (required > bytes.length) {
+			if (output != null) {
+				flush();
+				required = additional;
+			}
+			if (required > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length*2));
+		}
+	}
+
+	/**
+	 * Pass buffered content to the output stream. Does nothing if this writer is not created
+	 * with an output stream
+	 */
+	public void flush() {
+		if (output != null && size != 0) {
+			try {
+				output.write(bytes, 0, size);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			size = 0;
+		}
+	}
+
+	public BinaryWriter writeByte(int value) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) value;
+		return this;
+	}
+
+	public BinaryWriter writeBytes(byte[] value, int offset, int length) {
+		if (output != null && length > bytes.length) {
+			flush();
+			try {
+				output.write(value, offset, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return this;
+		}
+		ensureCapacity(length);
+		System.arraycopy(value, offset, bytes, size, length);
+		size += length;
+		return this;
+	}
+
+	public BinaryWriter writeBytes(ByteBuffer value) {
+		if (value.hasArray())
+			return writeBytes(value.array(), value.arrayOffset() + value.position(), value.remaining());
+		int length = value.remaining();
+		ensureCapacity(length);
+		value.duplicate().get(bytes, size, length);
+		size += length;
+		return this;
+	}
+
+	public BinaryWriter writeVarInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte) value;
+		return this;
+	}
+
+	public BinaryWriter writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * Write a byte array prefixed with its length
+	 */
+	public BinaryWriter writeBlob(byte[] value) {
+		writeVarInt(value.length);
+		return writeBytes(value, 0, value.length);
+	}
+
+	/**
+	 * Write an UTF-8 string prefixed with its encoded length. Unlike {@link java.io.DataOutput#writeUTF(String)},
+	 * there is no 64K limit
+	 */
+	public BinaryWriter writeString(String value) {
+		return writeBlob(value.getBytes(UTF_8));
+	}
+
+	/**
+	 * Write a string expected to repeat in the payload, such as a class name. Only its first
+	 * occurrence is written in full, and later ones are written as index of it
+	 */
+	public BinaryWriter writeSymbol(String value) {
+		if (symbols == null)
+			symbols = new HashMap<>();
+		Integer index = symbols.get(value);
+		if (index != null) {
+			writeVarInt(index + 1);
+		} else {
+			symbols.put(value, symbols.size());
+			writeVarInt(0).writeString(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @return size of content written so far, or of content not flushed yet if this writer is
+	 * created with an output stream
+	 */
+	public int size() {
+		return size;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	/**
+	 * @return buffer wrapping content written so far without copying. The writer should not be
+	 * used any more after calling this
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(bytes, 0, size);
+	}
+
+}
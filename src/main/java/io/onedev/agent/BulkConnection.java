@@ -0,0 +1,138 @@
+package io.onedev.agent;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.*;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Additional connection to server carrying job logs of a primary connection, if server
+ * accepts {@link Capabilities#BULK_CONNECTION}. This keeps heartbeats, calls and job
+ * cancellations on primary connection from queueing behind large amount of logs. Job logs
+ * fall back to primary connection whenever bulk connection is not available
+ */
+@WebSocket
+public class BulkConnection {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkConnection.class);
+
+	private static final Map<Session, Session> bulkSessions = new ConcurrentHashMap<>();
+
+	// Capabilities affecting format of job logs, which should be same on both connections
+	private static final List<String> FORMAT_CAPABILITIES = Arrays.asList(
+			Capabilities.JOB_LOG_BATCH, Capabilities.STREAM_CHANNELS);
+
+	private final Session primarySession;
+
+	private volatile Session session;
+
+	private BulkConnection(Session primarySession) {
+		this.primarySession = primarySession;
+	}
+
+	public static void open(Session primarySession) {
+		if (Capabilities.isEnabled(primarySession, Capabilities.BULK_CONNECTION)) {
+			try {
+				Agent.connectBulk(new BulkConnection(primarySession));
+			} catch (Exception e) {
+				logger.error("Error opening bulk connection", e);
+			}
+		}
+	}
+
+	/**
+	 * @return bulk session of specified primary session, or <tt>null</tt> if not available.
+	 * Bulk session is returned until its messages not written yet are handed over to primary
+	 * session, even if it is already closed, so that messages are not reordered
+	 */
+	@Nullable
+	public static Session of(Session primarySession) {
+		return bulkSessions.get(primarySession);
+	}
+
+	/**
+	 * @return session to send bulk data of specified primary session over
+	 */
+	public static Session route(Session primarySession) {
+		Session bulkSession = of(primarySession);
+		return bulkSession != null? bulkSession: primarySession;
+	}
+
+	public static void close(Session primarySession) {
+		Session bulkSession = bulkSessions.remove(primarySession);
+		if (bulkSession != null)
+			bulkSession.close();
+	}
+
+	@OnWebSocketConnect
+	public void onConnect(Session session) {
+		this.session = session;
+		if (!primarySession.isOpen()) {
+			session.close();
+			return;
+		}
+		for (String capability: FORMAT_CAPABILITIES) {
+			if (Capabilities.isEnabled(session, capability) != Capabilities.isEnabled(primarySession, capability)) {
+				logger.warn("Capability '" + capability + "' differs between primary and bulk connection, "
+						+ "using primary connection only");
+				session.close();
+				return;
+			}
+		}
+		OutboundQueue.open(session);
+		Heartbeat.open(session);
+		Channels.open(session);
+		bulkSessions.put(primarySession, session);
+		// Primary connection may be closed while we are registering
+		if (!primarySession.isOpen())
+			close(primarySession);
+		else
+			logger.debug("Bulk connection opened");
+	}
+
+	@OnWebSocketFrame
+	public void onFrame(Frame frame) {
+		Heartbeat heartbeat = Heartbeat.of(session);
+		if (heartbeat != null) {
+			if (frame.getType() == Frame.Type.PONG)
+				heartbeat.onPong(frame.getPayload() != null? frame.getPayload(): ByteBuffer.allocate(0));
+			else
+				heartbeat.onReceived();
+		}
+	}
+
+	@OnWebSocketClose
+	public void onClose(int statusCode, String reason) {
+		logger.debug("Bulk connection closed (status code: {}, reason: {})", statusCode, reason);
+		if (session == null)
+			return;
+		/*
+		 * Messages sent to bulk session after draining are rejected by its closed queue and
+		 * spooled by job loggers, which are resumed via primary session after hand over
+		 */
+		List<Message> pending = OutboundQueue.drain(session);
+		Heartbeat.close(session);
+		int dropped = Channels.handOver(session, primarySession, pending);
+		bulkSessions.remove(primarySession, session);
+		if (dropped != 0)
+			logger.warn("{} job log messages dropped as primary connection is also closed", dropped);
+		else if (!pending.isEmpty())
+			logger.debug("{} job log messages handed over to primary connection", pending.size());
+		JobLogger.resumeAll();
+	}
+
+	@OnWebSocketError
+	public void onError(Throwable t) {
+		if (!Agent.logExpectedError(t, logger))
+			logger.error("Bulk connection error", t);
+	}
+
+}
@@ -0,0 +1,84 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.StringUtils;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+
+import java.util.*;
+
+/**
+ * Protocol capabilities negotiated per connection. Agent advertises what it supports via
+ * an upgrade request header, and server echoes back the subset it accepts in upgrade
+ * response. Servers not aware of this header echo nothing, and all capabilities are
+ * considered disabled for that connection
+ */
+public class Capabilities {
+
+	public static final String HEADER = "X-OneDev-Agent-Capabilities";
+
+	public static final String BINARY_CODEC = "binary-codec-1";
+
+	public static final String JOB_LOG_BATCH = "job-log-batch-1";
+
+	public static final String COMPRESSION = "deflate-1";
+
+	public static final String CHUNKED_RPC = "chunked-rpc-1";
+
+	public static final String HEARTBEAT_PING = "heartbeat-ping-1";
+
+	public static final String SESSION_RESUME = "session-resume-1";
+
+	public static final String STREAM_CHANNELS = "stream-channels-1";
+
+	public static final String SHELL_BYTES = "shell-bytes-1";
+
+	public static final String BULK_CONNECTION = "bulk-connection-1";
+
+	public static final String AGENT_METRICS = "agent-metrics-1";
+
+	/**
+	 * Upgrade request header telling server the purpose of an additional connection
+	 */
+	public static final String CONNECTION_HEADER = "X-OneDev-Agent-Connection";
+
+	public static final String BULK_CONNECTION_VALUE = "bulk";
+
+	/**
+	 * Upgrade request header listing tokens of jobs still running on agent, so that server
+	 * accepting {@link #SESSION_RESUME} can attach them to the new session
+	 */
+	public static final String RUNNING_JOBS_HEADER = "X-OneDev-Agent-Running-Jobs";
+
+	private static final List<String> SUPPORTED = Collections.unmodifiableList(Arrays.asList(
+			BINARY_CODEC, JOB_LOG_BATCH, COMPRESSION, CHUNKED_RPC, HEARTBEAT_PING, SESSION_RESUME,
+			STREAM_CHANNELS, SHELL_BYTES, BULK_CONNECTION, AGENT_METRICS));
+
+	private static final Map<Session, Set<String>> enabled = Collections.synchronizedMap(new WeakHashMap<>());
+
+	public static List<String> getSupported() {
+		return SUPPORTED;
+	}
+
+	public static void advertise(ClientUpgradeRequest request) {
+		request.setHeader(HEADER, String.join(",", SUPPORTED));
+	}
+
+	public static Set<String> getEnabled(Session session) {
+		return enabled.computeIfAbsent(session, key -> {
+			Set<String> capabilities = new HashSet<>();
+			String header = key.getUpgradeResponse().getHeader(HEADER);
+			if (header != null) {
+				for (String capability: StringUtils.splitAndTrim(header, ",")) {
+					if (SUPPORTED.contains(capability))
+						capabilities.add(capability);
+				}
+			}
+			return Collections.unmodifiableSet(capabilities);
+		});
+	}
+
+	public static boolean isEnabled(Session session, String capability) {
+		return getEnabled(session).contains(capability);
+	}
+
+}
@@ -0,0 +1,176 @@
+package io.onedev.agent;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps job tokens and shell session ids to compact channel ids if server accepts
+ * {@link Capabilities#STREAM_CHANNELS}. Stream messages then carry a varint channel id
+ * instead of a string prefix. Each side allocates ids of channels it sends on, and announces
+ * them with {@link MessageTypes#CHANNEL_OPEN} laid out as <pre>[id][name]</pre> before first
+ * use. Ids allocated by agent are unique across sessions, so that messages spooled while
+ * disconnected remain valid after reconnecting
+ */
+public class Channels {
+
+	private static final Map<Session, Channels> channelsOfSessions = new ConcurrentHashMap<>();
+
+	private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private final Session session;
+
+	// Id to name of channels announced to server
+	private final Map<Integer, String> announced = new ConcurrentHashMap<>();
+
+	/*
+	 * Id to name of channels released while close messages may still be queued. Cleared
+	 * whenever the outbound queue is found empty
+	 */
+	private final Map<Integer, String> releasing = new ConcurrentHashMap<>();
+
+	private final Map<Integer, String> inbound = new ConcurrentHashMap<>();
+
+	private Channels(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * @return channels of specified session, or <tt>null</tt> if server does not accept channels
+	 */
+	@Nullable
+	public static Channels open(Session session) {
+		if (Capabilities.isEnabled(session, Capabilities.STREAM_CHANNELS)) {
+			Channels channels = new Channels(session);
+			channelsOfSessions.put(session, channels);
+			return channels;
+		} else {
+			return null;
+		}
+	}
+
+	@Nullable
+	public static Channels of(Session session) {
+		return channelsOfSessions.get(session);
+	}
+
+	public static void close(Session session) {
+		channelsOfSessions.remove(session);
+	}
+
+	public static int getId(String name) {
+		return ids.computeIfAbsent(name, key -> nextId.getAndIncrement());
+	}
+
+	/**
+	 * Release channel of specified name on all sessions it was announced to. Close message is
+	 * sent with lowest priority, so that it is written after all queued data of the channel
+	 */
+	public static void release(String name) {
+		Integer id = ids.remove(name);
+		if (id != null)
+			release(id);
+	}
+
+	/**
+	 * Release channel of specified id on all sessions it was announced to, after its name
+	 * is already unregistered
+	 */
+	public static synchronized void release(int id) {
+		for (Channels channels: channelsOfSessions.values())
+			channels.close(id);
+	}
+
+	private synchronized void close(int id) {
+		String name = announced.remove(id);
+		if (name != null) {
+			OutboundQueue queue = OutboundQueue.of(session);
+			if (queue == null || queue.getQueuedMessages() == 0)
+				releasing.clear();
+			releasing.put(id, name);
+			new Message(MessageTypes.CHANNEL_CLOSE, new BinaryWriter(5).writeVarInt(id).toByteBuffer()).sendBy(session);
+		}
+	}
+
+	/**
+	 * Stop mapping specified name to specified id. Messages already carrying the id can still
+	 * be sent, and the channel should be released by id after that
+	 */
+	public static void unregister(String name, int id) {
+		ids.remove(name, id);
+	}
+
+	public int announce(String name) {
+		return announce(getId(name), name);
+	}
+
+	/**
+	 * Make sure specified channel is announced to server before any message sent after
+	 * this call
+	 */
+	public synchronized int announce(int id, String name) {
+		if (announced.putIfAbsent(id, name) == null) {
+			BinaryWriter writer = new BinaryWriter(name.length() + 10);
+			writer.writeVarInt(id);
+			writer.writeString(name);
+			new Message(MessageTypes.CHANNEL_OPEN, writer.toByteBuffer()).sendBy(session);
+		}
+		return id;
+	}
+
+	/**
+	 * Send messages drained from outbound queue of a closed session over another session,
+	 * and close channels of the closed session. Channels announced on the closed session
+	 * are announced on the other session first, and channels released on the closed session
+	 * are released on the other session after the messages
+	 *
+	 * @return number of messages dropped as the other session is also closed
+	 */
+	public static synchronized int handOver(Session from, Session to, List<Message> messages) {
+		Channels fromChannels = channelsOfSessions.remove(from);
+		Channels toChannels = of(to);
+		if (fromChannels != null && toChannels != null) {
+			fromChannels.announced.forEach(toChannels::announce);
+			fromChannels.releasing.forEach(toChannels::announce);
+		}
+		int dropped = 0;
+		for (Message message: messages) {
+			if (message.getType() == MessageTypes.CHANNEL_CLOSE) {
+				if (toChannels != null)
+					toChannels.close(new BinaryReader(message.getData()).readVarInt());
+			} else if (message.getType() != MessageTypes.CHANNEL_OPEN && (!to.isOpen() || !message.sendBy(to))) {
+				dropped++;
+			}
+		}
+		if (fromChannels != null && toChannels != null)
+			fromChannels.releasing.keySet().forEach(toChannels::close);
+		return dropped;
+	}
+
+	public void onOpen(ByteBuffer data) {
+		BinaryReader reader = new BinaryReader(data);
+		int id = reader.readVarInt();
+		inbound.put(id, reader.readString());
+	}
+
+	@Nullable
+	public String onClose(ByteBuffer data) {
+		return inbound.remove(new BinaryReader(data).readVarInt());
+	}
+
+	/**
+	 * @return name of channel opened by server with specified id, or <tt>null</tt> if not opened
+	 */
+	@Nullable
+	public String getName(int id) {
+		return inbound.get(id);
+	}
+
+}
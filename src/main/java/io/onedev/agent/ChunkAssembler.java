@@ -0,0 +1,92 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.ExplicitException;
+
+import javax.annotation.Nullable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects chunk messages sent by {@link ChunkedOutputStream} of the peer. Data of a call is
+ * exposed as a stream as soon as its first chunk arrives, so that it can be decoded while
+ * remaining chunks are still coming, and chunks already decoded can be released
+ */
+public class ChunkAssembler {
+
+	private final Map<String, Chunks> pending = new ConcurrentHashMap<>();
+
+	private final long maxBytes;
+
+	public ChunkAssembler(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return stream of call data if specified chunk is the first one of the call, or
+	 * <tt>null</tt> otherwise. Chunks of the same call should be appended in order, and
+	 * the returned stream should be read in another thread as reading blocks until
+	 * subsequent chunks are appended
+	 */
+	@Nullable
+	public InputStream append(ByteBuffer chunk) {
+		BinaryReader reader = new BinaryReader(chunk);
+		String uuid = reader.readString();
+		int flag = reader.readByte();
+		boolean last = flag != ChunkedOutputStream.MORE;
+		ByteBuffer data = reader.readRemaining();
+
+		boolean[] first = new boolean[1];
+		Chunks chunks = pending.computeIfAbsent(uuid, key -> {
+			first[0] = true;
+			return new Chunks(new ChunkedInputStream(Agent.SOCKET_IDLE_TIMEOUT));
+		});
+		if (flag == ChunkedOutputStream.ABORTED) {
+			pending.remove(uuid);
+			chunks.stream.abort("Peer failed to encode call data");
+			return null;
+		} else if (chunks.stream.getAbortReason() != null) {
+			// Decoder gave up, drop remaining chunks of the call
+			if (last)
+				pending.remove(uuid);
+			return null;
+		}
+		chunks.bytes += data.remaining();
+		if (chunks.bytes > maxBytes) {
+			pending.remove(uuid);
+			chunks.stream.abort("Chunked call data exceeds " + maxBytes + " bytes");
+			throw new ExplicitException("Chunked call data exceeds " + maxBytes + " bytes: " + uuid);
+		}
+		chunks.stream.append(data, last);
+		if (last)
+			pending.remove(uuid);
+		return first[0]? chunks.stream: null;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Abort streams of calls not received completely. Called when connection is closed
+	 */
+	public void clear() {
+		for (Chunks chunks: pending.values())
+			chunks.stream.abort("Connection closed");
+		pending.clear();
+	}
+
+	private static class Chunks {
+
+		final ChunkedInputStream stream;
+
+		long bytes;
+
+		Chunks(ChunkedInputStream stream) {
+			this.stream = stream;
+		}
+
+	}
+
+}
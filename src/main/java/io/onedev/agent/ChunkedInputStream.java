@@ -0,0 +1,118 @@
+package io.onedev.agent;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Stream of call data carried by chunk messages, filled by {@link ChunkAssembler} as chunks
+ * arrive and read by the decoder at the same time. Reading blocks until next chunk arrives,
+ * and chunks are released as soon as they are read
+ */
+public class ChunkedInputStream extends InputStream {
+
+	private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+
+	private final long timeout;
+
+	private ByteBuffer current;
+
+	private boolean complete;
+
+	private String abortReason;
+
+	/**
+	 * @param timeout max milliseconds to wait for next chunk
+	 */
+	public ChunkedInputStream(long timeout) {
+		this.timeout = timeout;
+	}
+
+	synchronized void append(ByteBuffer chunk, boolean last) {
+		if (abortReason == null) {
+			chunks.addLast(chunk);
+			complete = last;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Fail pending and subsequent reads with specified reason, and discard received chunks
+	 */
+	synchronized void abort(String reason) {
+		if (abortReason == null) {
+			abortReason = reason;
+			chunks.clear();
+			current = null;
+			notifyAll();
+		}
+	}
+
+	@Nullable
+	synchronized String getAbortReason() {
+		return abortReason;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] bytes = new byte[1];
+		if (read(bytes, 0, 1) == -1)
+			return -1;
+		else
+			return bytes[0] & 0xFF;
+	}
+
+	@Override
+	public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			if (abortReason != null)
+				throw new IOException(abortReason);
+			if (current != null && current.hasRemaining()) {
+				int count = Math.min(length, current.remaining());
+				current.get(bytes, offset, count);
+				return count;
+			}
+			current = chunks.pollFirst();
+			if (current == null) {
+				if (complete)
+					return -1;
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					abort("Timed out waiting for next chunk");
+				} else {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized int available() {
+		int available = current != null? current.remaining(): 0;
+		for (ByteBuffer chunk: chunks)
+			available += chunk.remaining();
+		return available;
+	}
+
+	/**
+	 * Closing stream before reaching its end aborts it, so that remaining chunks of the call
+	 * are dropped instead of being queued for nobody
+	 */
+	@Override
+	public synchronized void close() {
+		if (!complete || !chunks.isEmpty() || current != null && current.hasRemaining())
+			abort("Stream closed");
+	}
+
+}
@@ -0,0 +1,134 @@
+package io.onedev.agent;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream sending encoded call data of specified uuid as a sequence of chunk messages of at
+ * most {@link Agent#MAX_CHUNK_BYTES} each. If whole data fits into a single chunk, it is sent
+ * as a normal message instead. Chunk message data is laid out as:
+ * <pre>[uuid][flag][bytes]</pre>
+ * with flag being {@link #MORE}, {@link #LAST}, or {@link #ABORTED} if the call data fails
+ * to be encoded after some chunks are sent
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	public static final int MORE = 0;
+
+	public static final int LAST = 1;
+
+	public static final int ABORTED = 2;
+
+	private final Session session;
+
+	private final MessageTypes type;
+
+	private final MessageTypes chunkType;
+
+	private final String uuid;
+
+	private final int chunkSize;
+
+	private byte[] buffer;
+
+	private int count;
+
+	private int chunks;
+
+	private boolean closed;
+
+	public ChunkedOutputStream(Session session, MessageTypes type, MessageTypes chunkType, String uuid, int chunkSize) {
+		this.session = session;
+		this.type = type;
+		this.chunkType = chunkType;
+		this.uuid = uuid;
+		this.chunkSize = chunkSize;
+		buffer = new byte[Math.min(chunkSize, 8192)];
+	}
+
+	@Override
+	public void write(int b) {
+		if (count == buffer.length)
+			makeRoom();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			if (count == buffer.length)
+				makeRoom();
+			int size = Math.min(length, buffer.length - count);
+			System.arraycopy(bytes, offset, buffer, count, size);
+			count += size;
+			offset += size;
+			length -= size;
+		}
+	}
+
+	private void makeRoom() {
+		if (buffer.length < chunkSize) {
+			byte[] newBuffer = new byte[Math.min(chunkSize, buffer.length*2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, count);
+			buffer = newBuffer;
+		} else {
+			/*
+			 * Only send a full chunk when more data arrives, so that the last chunk is
+			 * always known to be last
+			 */
+			sendChunk(MORE);
+		}
+	}
+
+	private void sendChunk(int flag) {
+		BinaryWriter writer = new BinaryWriter(uuid.length() + count + 8);
+		writer.writeString(uuid);
+		writer.writeByte(flag);
+		writer.writeBytes(buffer, 0, count);
+		new Message(chunkType, writer.toByteBuffer()).sendBy(session);
+		count = 0;
+		chunks++;
+	}
+
+	/**
+	 * @return number of chunk messages sent so far
+	 */
+	public int getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Send remaining data as the last chunk, or as a normal message if no chunk is sent yet.
+	 * Should only be called after call data is encoded completely, and {@link #abort()}
+	 * should be called instead if encoding fails
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			if (chunks == 0)
+				new Message(type, ByteBuffer.wrap(buffer, 0, count)).sendBy(session);
+			else
+				sendChunk(LAST);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Discard data not sent yet. Peer is told to drop the call data if some chunks are
+	 * sent already, and nothing is sent otherwise
+	 */
+	public void abort() {
+		if (!closed) {
+			closed = true;
+			if (chunks != 0) {
+				count = 0;
+				sendChunk(ABORTED);
+			}
+			buffer = null;
+		}
+	}
+
+}
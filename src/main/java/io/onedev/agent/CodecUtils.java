@@ -0,0 +1,56 @@
+package io.onedev.agent;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+public class CodecUtils {
+
+	public static PayloadCodec getCodec(Session session) {
+		if (Capabilities.isEnabled(session, Capabilities.BINARY_CODEC))
+			return BinaryPayloadCodec.INSTANCE;
+		else
+			return JavaPayloadCodec.INSTANCE;
+	}
+
+	/**
+	 * Decode payload encoded by any supported codec. Codec is detected from leading bytes, so
+	 * that payloads of a peer still using Java serialization can always be decoded
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T decode(ByteBuffer data) {
+		if (BinaryPayloadCodec.INSTANCE.accepts(data))
+			return (T) BinaryPayloadCodec.INSTANCE.decode(data);
+		else
+			return (T) JavaPayloadCodec.INSTANCE.decode(data);
+	}
+
+	public static <T> T decode(byte[] data) {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Decode payload read from specified stream, such as data of a chunked call still being
+	 * received. Codec is detected from leading bytes the same way as for buffered payloads
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T decode(InputStream input) {
+		try {
+			PushbackInputStream pushback = new PushbackInputStream(input, 2);
+			byte[] head = new byte[2];
+			int length = pushback.readNBytes(head, 0, head.length);
+			pushback.unread(head, 0, length);
+			if (BinaryPayloadCodec.INSTANCE.accepts(ByteBuffer.wrap(head, 0, length)))
+				return (T) BinaryPayloadCodec.INSTANCE.decode(pushback);
+			else
+				return (T) JavaPayloadCodec.INSTANCE.decode(pushback);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,518 @@
+package io.onedev.agent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.onedev.commons.utils.ExplicitException;
+import io.onedev.commons.utils.command.Commandline;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Minimal Docker Engine API client talking HTTP/1.1 over docker unix socket, used in place
+ * of forking docker CLI for frequent operations. Connections are kept alive and pooled per
+ * socket. Unix domain socket channels require Java 16 or higher, and {@link #of(Commandline)}
+ * returns <tt>null</tt> if not available, in which case callers fall back to docker CLI.
+ * <p>
+ * Methods throw {@link IOException} if daemon can not be talked to, and callers should fall
+ * back to docker CLI then. Errors reported by daemon are thrown as {@link ExplicitException}
+ */
+public class DockerEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(DockerEngine.class);
+
+	private static final String DEFAULT_SOCKET = "/var/run/docker.sock";
+
+	private static final int MAX_IDLE_CONNECTIONS = 4;
+
+	private static final Map<String, DockerEngine> engines = new ConcurrentHashMap<>();
+
+	private static final Method addressOf;
+
+	private static final Method openChannel;
+
+	private static final ProtocolFamily unixFamily;
+
+	static {
+		Method addressOfMethod = null;
+		Method openChannelMethod = null;
+		ProtocolFamily family = null;
+		try {
+			addressOfMethod = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			openChannelMethod = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			family = StandardProtocolFamily.valueOf("UNIX");
+		} catch (Exception e) {
+			logger.debug("Unix domain socket not supported, docker CLI will be used");
+		}
+		addressOf = addressOfMethod;
+		openChannel = openChannelMethod;
+		unixFamily = family;
+	}
+
+	private final String socketPath;
+
+	private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();
+
+	public DockerEngine(String socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	public static boolean isSupported() {
+		return addressOf != null;
+	}
+
+	/**
+	 * @return engine client of daemon specified docker command talks to, or <tt>null</tt>
+	 * if daemon can not be reached via unix socket
+	 */
+	@Nullable
+	public static DockerEngine of(Commandline docker) {
+		if (!isSupported() || SystemUtils.IS_OS_WINDOWS)
+			return null;
+		String dockerHost = docker.environments().get("DOCKER_HOST");
+		if (dockerHost == null)
+			dockerHost = System.getenv("DOCKER_HOST");
+		String socketPath;
+		if (dockerHost == null) {
+			// CLI may talk to a different daemon via context
+			if (System.getenv("DOCKER_CONTEXT") != null)
+				return null;
+			socketPath = DEFAULT_SOCKET;
+		} else if (dockerHost.startsWith("unix://")) {
+			socketPath = dockerHost.substring("unix://".length());
+		} else {
+			return null;
+		}
+		if (new File(socketPath).exists())
+			return engines.computeIfAbsent(socketPath, DockerEngine::new);
+		else
+			return null;
+	}
+
+	public String getSocketPath() {
+		return socketPath;
+	}
+
+	/**
+	 * Send specified request, and throw {@link ExplicitException} if daemon reports an error
+	 * other than not found
+	 */
+	public Response request(String method, String path, @Nullable Object body) throws IOException {
+		Response response = send(method, path, body);
+		int status = response.getStatus();
+		if (status >= 400 && status != 404)
+			throw new ExplicitException("Docker daemon error (status: " + status + "): " + response.getMessage());
+		return response;
+	}
+
+	public Response send(String method, String path, @Nullable Object body) throws IOException {
+		byte[] bodyBytes = body != null? Agent.objectMapper.writeValueAsBytes(body): null;
+		Connection connection = borrow();
+		boolean reused = connection.reused;
+		try {
+			return request(connection, method, path, bodyBytes);
+		} catch (IOException e) {
+			/*
+			 * Daemon may close idle connection at any time. Only retry if the request did not
+			 * reach the daemon, or is safe to be sent twice, as a non-idempotent request such
+			 * as container creation may already have taken effect
+			 */
+			if (reused && (!connection.sent || method.equals("GET")))
+				return request(open(), method, path, bodyBytes);
+			else
+				throw e;
+		}
+	}
+
+	private Response request(Connection connection, String method, String path, @Nullable byte[] body) throws IOException {
+		boolean keepAlive = false;
+		connection.sent = false;
+		try {
+			StringBuilder builder = new StringBuilder();
+			builder.append(method).append(" ").append(path).append(" HTTP/1.1\r\n");
+			builder.append("Host: docker\r\n");
+			if (body != null) {
+				builder.append("Content-Type: application/json\r\n");
+				builder.append("Content-Length: ").append(body.length).append("\r\n");
+			} else if (!method.equals("GET")) {
+				builder.append("Content-Length: 0\r\n");
+			}
+			builder.append("\r\n");
+			connection.output.write(builder.toString().getBytes(ISO_8859_1));
+			if (body != null)
+				connection.output.write(body);
+			connection.output.flush();
+			connection.sent = true;
+
+			String statusLine = readLine(connection.input);
+			if (statusLine == null)
+				throw new EOFException("Connection closed by docker daemon");
+			String[] statusFields = statusLine.split(" ", 3);
+			if (statusFields.length < 2)
+				throw new IOException("Invalid response from docker daemon: " + statusLine);
+			int status = Integer.parseInt(statusFields[1]);
+
+			Map<String, String> headers = new HashMap<>();
+			String line;
+			while ((line = readLine(connection.input)) != null && line.length() != 0) {
+				int index = line.indexOf(':');
+				if (index != -1)
+					headers.put(line.substring(0, index).trim().toLowerCase(), line.substring(index+1).trim());
+			}
+
+			byte[] responseBody;
+			keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+			if (status == 204 || status == 304) {
+				responseBody = new byte[0];
+			} else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				responseBody = readChunked(connection.input);
+			} else if (headers.containsKey("content-length")) {
+				responseBody = new byte[Integer.parseInt(headers.get("content-length"))];
+				new DataInputStream(connection.input).readFully(responseBody);
+			} else {
+				responseBody = connection.input.readAllBytes();
+				keepAlive = false;
+			}
+			return new Response(status, responseBody);
+		} finally {
+			if (keepAlive)
+				release(connection);
+			else
+				connection.close();
+		}
+	}
+
+	private static byte[] readChunked(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DataInputStream dataInput = new DataInputStream(input);
+		while (true) {
+			String sizeLine = readLine(input);
+			if (sizeLine == null)
+				throw new EOFException("Unexpected end of chunked response");
+			int size = Integer.parseInt(StringUtils.substringBefore(sizeLine, ";").trim(), 16);
+			if (size == 0) {
+				String line;
+				while ((line = readLine(input)) != null && line.length() != 0);
+				return output.toByteArray();
+			}
+			byte[] chunk = new byte[size];
+			dataInput.readFully(chunk);
+			output.write(chunk);
+			readLine(input);
+		}
+	}
+
+	@Nullable
+	private static String readLine(InputStream input) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int b;
+		while ((b = input.read()) != -1) {
+			if (b == '\n') {
+				int length = builder.length();
+				if (length != 0 && builder.charAt(length-1) == '\r')
+					builder.setLength(length-1);
+				return builder.toString();
+			}
+			builder.append((char) b);
+		}
+		return builder.length() != 0? builder.toString(): null;
+	}
+
+	private Connection borrow() throws IOException {
+		synchronized (idleConnections) {
+			Connection connection = idleConnections.pollFirst();
+			if (connection != null) {
+				connection.reused = true;
+				return connection;
+			}
+		}
+		return open();
+	}
+
+	private void release(Connection connection) {
+		synchronized (idleConnections) {
+			if (idleConnections.size() < MAX_IDLE_CONNECTIONS) {
+				idleConnections.addFirst(connection);
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	private Connection open() throws IOException {
+		try {
+			SocketChannel channel = (SocketChannel) openChannel.invoke(null, unixFamily);
+			try {
+				channel.connect((SocketAddress) addressOf.invoke(null, socketPath));
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return new Connection(channel);
+		} catch (ReflectiveOperationException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else
+				throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Close pooled idle connections
+	 */
+	public void close() {
+		synchronized (idleConnections) {
+			for (Connection connection: idleConnections)
+				connection.close();
+			idleConnections.clear();
+		}
+	}
+
+	private static String encode(String value) {
+		return URLEncoder.encode(value, UTF_8);
+	}
+
+	private static String encodeFilters(Map<String, List<String>> filters) throws IOException {
+		return encode(Agent.objectMapper.writeValueAsString(filters));
+	}
+
+	/**
+	 * @return names of networks with name containing specified string
+	 */
+	public List<String> listNetworks(String nameFilter) throws IOException {
+		Response response = request("GET", "/networks?filters="
+				+ encodeFilters(Map.of("name", List.of(nameFilter))), null);
+		List<String> names = new ArrayList<>();
+		for (JsonNode networkNode: response.getJson())
+			names.add(networkNode.get("Name").asText());
+		return names;
+	}
+
+	public void createNetwork(String name, @Nullable String driver) throws IOException {
+		Map<String, Object> body = new HashMap<>();
+		body.put("Name", name);
+		body.put("CheckDuplicate", true);
+		if (driver != null)
+			body.put("Driver", driver);
+		request("POST", "/networks/create", body);
+	}
+
+	public void removeNetwork(String name) throws IOException {
+		Response response = request("DELETE", "/networks/" + encode(name), null);
+		if (response.getStatus() == 404)
+			throw new ExplicitException("No such network: " + name);
+	}
+
+	/**
+	 * @return ids of containers matching specified filters, in the format of docker API
+	 */
+	public List<String> listContainers(Map<String, List<String>> filters, boolean all) throws IOException {
+		Response response = request("GET", "/containers/json?all=" + all + "&filters=" + encodeFilters(filters), null);
+		List<String> ids = new ArrayList<>();
+		for (JsonNode containerNode: response.getJson())
+			ids.add(containerNode.get("Id").asText());
+		return ids;
+	}
+
+	/**
+	 * Stop specified container. Container already gone or being removed is ignored
+	 */
+	public void stopContainer(String container, @Nullable Integer timeout) throws IOException {
+		String path = "/containers/" + encode(container) + "/stop";
+		if (timeout != null)
+			path += "?t=" + timeout;
+		requestContainer("POST", path);
+	}
+
+	/**
+	 * Remove specified container. Container already gone or being removed is ignored
+	 */
+	public void removeContainer(String container, boolean removeVolumes) throws IOException {
+		requestContainer("DELETE", "/containers/" + encode(container) + "?v=" + removeVolumes);
+	}
+
+	private void requestContainer(String method, String path) throws IOException {
+		Response response = send(method, path, null);
+		int status = response.getStatus();
+		if (status >= 400 && status != 404 && status != 409)
+			throw new ExplicitException("Docker daemon error (status: " + status + "): " + response.getMessage());
+	}
+
+	/**
+	 * @return inspection result of specified image, or <tt>null</tt> if image does not exist
+	 */
+	@Nullable
+	public JsonNode inspectImage(String image) throws IOException {
+		Response response = request("GET", "/images/" + image + "/json", null);
+		return response.getStatus() != 404? response.getJson(): null;
+	}
+
+	/**
+	 * @return summaries of all images, each containing fields such as <tt>Id</tt>,
+	 * <tt>RepoTags</tt>, <tt>RepoDigests</tt> and <tt>Size</tt>
+	 */
+	public JsonNode listImages() throws IOException {
+		return request("GET", "/images/json", null).getJson();
+	}
+
+	/**
+	 * Remove specified image if not used by any container
+	 *
+	 * @return <tt>false</tt> if image does not exist or is being used
+	 */
+	public boolean removeImage(String image) throws IOException {
+		Response response = send("DELETE", "/images/" + image, null);
+		if (response.getStatus() == 404 || response.getStatus() == 409)
+			return false;
+		else if (response.getStatus() >= 400)
+			throw new ExplicitException("Docker daemon error (status: " + response.getStatus() + "): " + response.getMessage());
+		else
+			return true;
+	}
+
+	/**
+	 * @return inspection result of specified container, or <tt>null</tt> if container does not exist
+	 */
+	@Nullable
+	public JsonNode inspectContainer(String container) throws IOException {
+		Response response = request("GET", "/containers/" + encode(container) + "/json", null);
+		return response.getStatus() != 404? response.getJson(): null;
+	}
+
+	/**
+	 * Run specified command in specified container and wait for it to finish
+	 *
+	 * @return result of the command, or <tt>null</tt> if container does not exist or is
+	 * not running
+	 */
+	@Nullable
+	public ExecResult exec(String container, List<String> command) throws IOException {
+		Map<String, Object> body = new HashMap<>();
+		body.put("AttachStdout", true);
+		body.put("AttachStderr", true);
+		body.put("Cmd", command);
+		Response response = send("POST", "/containers/" + encode(container) + "/exec", body);
+		if (response.getStatus() == 404 || response.getStatus() == 409)
+			return null;
+		else if (response.getStatus() >= 400)
+			throw new ExplicitException("Docker daemon error (status: " + response.getStatus() + "): " + response.getMessage());
+		String execId = response.getJson().get("Id").asText();
+
+		// Daemon streams output multiplexed with 8 bytes frame header, and closes connection
+		// when command exits
+		byte[] stream = request("POST", "/exec/" + execId + "/start", Map.of("Detach", false, "Tty", false)).getBody();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int index = 0;
+		while (index + 8 <= stream.length) {
+			int size = ((stream[index+4] & 0xff) << 24) | ((stream[index+5] & 0xff) << 16)
+					| ((stream[index+6] & 0xff) << 8) | (stream[index+7] & 0xff);
+			index += 8;
+			size = Math.min(size, stream.length - index);
+			output.write(stream, index, size);
+			index += size;
+		}
+
+		JsonNode execNode = request("GET", "/exec/" + execId + "/json", null).getJson();
+		return new ExecResult(execNode.path("ExitCode").asInt(-1), new String(output.toByteArray(), UTF_8));
+	}
+
+	public static class ExecResult {
+
+		private final int exitCode;
+
+		private final String output;
+
+		public ExecResult(int exitCode, String output) {
+			this.exitCode = exitCode;
+			this.output = output;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+	}
+
+	public static class Response {
+
+		private final int status;
+
+		private final byte[] body;
+
+		public Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public JsonNode getJson() throws IOException {
+			return Agent.objectMapper.readTree(body);
+		}
+
+		public String getMessage() {
+			try {
+				JsonNode messageNode = getJson().get("message");
+				if (messageNode != null)
+					return messageNode.asText();
+			} catch (IOException e) {
+			}
+			return new String(body, UTF_8);
+		}
+
+	}
+
+	private static class Connection implements Closeable {
+
+		final SocketChannel channel;
+
+		final InputStream input;
+
+		final OutputStream output;
+
+		boolean reused;
+
+		boolean sent;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			input = new BufferedInputStream(Channels.newInputStream(channel));
+			output = new BufferedOutputStream(Channels.newOutputStream(channel));
+		}
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+}
@@ -7,6 +7,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import io.onedev.agent.job.ImageMappingFacade;
 import io.onedev.agent.job.RegistryLoginFacade;
+import io.onedev.commons.bootstrap.Bootstrap;
 import io.onedev.commons.utils.*;
 import io.onedev.commons.utils.command.Commandline;
 import io.onedev.commons.utils.command.ExecutionResult;
@@ -31,7 +32,6 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import static io.onedev.agent.job.ImageMappingFacade.map;
 import static io.onedev.commons.utils.StringUtils.parseQuoteTokens;
-import static io.onedev.commons.utils.StringUtils.splitAndTrim;
 import static io.onedev.k8shelper.KubernetesHelper.replacePlaceholders;
 import static io.onedev.k8shelper.KubernetesHelper.stringifyStepPosition;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -41,6 +41,14 @@ public class DockerExecutorUtils extends ExecutorUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(DockerExecutorUtils.class);
 
+	private static final long MIN_READINESS_CHECK_INTERVAL = 250;
+
+	private static final long MAX_READINESS_CHECK_INTERVAL = 10000;
+
+	private static final int MAX_CONCURRENT_CONTAINER_REMOVALS = 8;
+
+	private static volatile String owner;
+
 	public static String getErrorMessage(Exception exception) {
 		ExplicitException explicitException = ExceptionUtils.find(exception, ExplicitException.class);
 		if (explicitException == null)
@@ -94,6 +102,9 @@ public class DockerExecutorUtils extends ExecutorUtils {
 								  File hostBuildHome, boolean pullAlways, TaskLogger jobLogger) {
 		createBuilder(docker, builder, jobLogger);
 
+		// Built image may be tagged with references used by later steps
+		ImageInfoCache.invalidateAll(docker);
+
 		docker.clearArgs();
 		docker.addArgs("buildx", "build", "--builder", builder);
 		if (pullAlways)
@@ -316,6 +327,19 @@ public class DockerExecutorUtils extends ExecutorUtils {
 	public static void writeFile(File file, String content, Commandline docker, boolean runInDocker) {
 		if (runInDocker) {
 			FileUtils.writeFile(file, content, UTF_8);
+		} else if (useHelperContainer(file)) {
+			File tempFile;
+			try {
+				tempFile = File.createTempFile("helper", null, Agent.getTempDir());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			try {
+				FileUtils.writeFile(tempFile, content, UTF_8);
+				HelperContainer.of(docker).exec("cp", tempFile.getAbsolutePath(), file.getAbsolutePath());
+			} finally {
+				FileUtils.deleteFile(tempFile);
+			}
 		} else {
 			var tempFile = FileUtils.createTempFile();
 			try {
@@ -347,8 +371,14 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		}
 	}
 
+	private static boolean useHelperContainer(File file) {
+		return !SystemUtils.IS_OS_WINDOWS && HelperContainer.isAccessible(file);
+	}
+
 	public static String getOwner() {
-		return getId("-u") + ":" + getId("-g");
+		if (owner == null)
+			owner = getId("-u") + ":" + getId("-g");
+		return owner;
 	}
 
 	private static int getId(String flag) {
@@ -373,6 +403,18 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		if (owner != null) {
 			if (runInDocker) {
 				KubernetesHelper.changeOwner(dir, owner);
+			} else if (useHelperContainer(dir)) {
+				// Only touch files not yet owned by specified owner, as rewriting ownership
+				// of every file in a large workspace is slow
+				List<String> command = new ArrayList<>(List.of("find", dir.getAbsolutePath()));
+				if (owner.contains(":")) {
+					command.addAll(List.of("(", "!", "-user", StringUtils.substringBefore(owner, ":"),
+							"-o", "!", "-group", StringUtils.substringAfter(owner, ":"), ")"));
+				} else {
+					command.addAll(List.of("!", "-user", owner));
+				}
+				command.addAll(List.of("-exec", "chown", "-h", owner, "{}", "+"));
+				HelperContainer.of(docker).exec(command.toArray(new String[0]));
 			} else {
 				docker.addArgs("run", "-v", dir.getAbsolutePath() + ":/dir-to-change-owner", "--rm", "busybox", "sh", "-c",
 						"chown -R " + owner + " /dir-to-change-owner");
@@ -404,6 +446,8 @@ public class DockerExecutorUtils extends ExecutorUtils {
 	public static void deleteDir(File dir, Commandline docker, boolean runInDocker) {
 		if (SystemUtils.IS_OS_WINDOWS || runInDocker) {
 			FileUtils.deleteDir(dir);
+		} else if (useHelperContainer(dir)) {
+			HelperContainer.of(docker).exec("rm", "-rf", dir.getAbsolutePath());
 		} else {
 			docker.addArgs("run", "-v", dir.getParentFile().getAbsolutePath() + ":/parent-of-dir-to-delete", "--rm", "busybox", "sh", "-c",
 					"rm -rf /parent-of-dir-to-delete/" + dir.getName());
@@ -499,15 +543,39 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		}
 	}
 
-	public static void createNetwork(Commandline docker, String network, @Nullable String options, TaskLogger jobLogger) {
+	/**
+	 * @return key identifying daemon specified docker command talks to
+	 */
+	public static String getDaemonKey(Commandline docker) {
+		String dockerHost = docker.environments().get("DOCKER_HOST");
+		return docker.executable() + (dockerHost != null? "@" + dockerHost: "");
+	}
+
+	private static void logEngineError(DockerEngine engine, IOException e) {
+		logger.warn("Error accessing docker engine via '" + engine.getSocketPath()
+				+ "', falling back to docker CLI", e);
+	}
+
+	private static boolean networkExists(Commandline docker, String network, TaskLogger jobLogger) {
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				// Name filter matches networks containing specified name
+				return engine.listNetworks(network).contains(network);
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
 		docker.clearArgs();
 		AtomicBoolean networkExists = new AtomicBoolean(false);
-		docker.addArgs("network", "ls", "-q", "--filter", "name=" + network);
+		docker.addArgs("network", "ls", "--format={{.Name}}", "--filter", "name=" + network);
 		docker.execute(new LineConsumer() {
 
 			@Override
 			public void consume(String line) {
-				networkExists.set(true);
+				if (line.trim().equals(network))
+					networkExists.set(true);
 			}
 
 		}, new LineConsumer() {
@@ -518,10 +586,23 @@ public class DockerExecutorUtils extends ExecutorUtils {
 			}
 
 		}).checkReturnCode();
+		return networkExists.get();
+	}
 
-		if (networkExists.get()) {
+	public static void createNetwork(Commandline docker, String network, @Nullable String options, TaskLogger jobLogger) {
+		if (networkExists(docker, network, jobLogger)) {
 			clearNetwork(docker, network, jobLogger);
 		} else {
+			// Network options are specified as CLI flags
+			DockerEngine engine = options == null? DockerEngine.of(docker): null;
+			if (engine != null) {
+				try {
+					engine.createNetwork(network, null);
+					return;
+				} catch (IOException e) {
+					logEngineError(engine, e);
+				}
+			}
 			docker.clearArgs();
 			docker.addArgs("network", "create");
 			if (SystemUtils.IS_OS_WINDOWS)
@@ -552,6 +633,16 @@ public class DockerExecutorUtils extends ExecutorUtils {
 	public static void deleteNetwork(Commandline docker, String network, TaskLogger jobLogger) {
 		clearNetwork(docker, network, jobLogger);
 
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				engine.removeNetwork(network);
+				return;
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
 		docker.clearArgs();
 		docker.addArgs("network", "rm", network);
 		docker.execute(new LineConsumer() {
@@ -572,6 +663,36 @@ public class DockerExecutorUtils extends ExecutorUtils {
 	}
 
 	public static void clearNetwork(Commandline docker, String network, TaskLogger jobLogger) {
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				List<String> containerIds = engine.listContainers(Map.of("network", List.of(network)), true);
+				if (!containerIds.isEmpty()) {
+					// Stop containers concurrently so that grace periods overlap
+					AtomicReference<IOException> engineError = new AtomicReference<>();
+					List<Callable<Void>> removers = new ArrayList<>();
+					for (String container: containerIds) {
+						removers.add(() -> {
+							try {
+								engine.stopContainer(container, Agent.containerStopTimeout);
+								engine.removeContainer(container, true);
+							} catch (IOException e) {
+								// Remaining containers are removed via docker CLI below
+								engineError.compareAndSet(null, e);
+							}
+							return null;
+						});
+					}
+					ExecutorUtils.runConcurrently(removers, MAX_CONCURRENT_CONTAINER_REMOVALS, Bootstrap.executorService);
+					if (engineError.get() != null)
+						throw engineError.get();
+				}
+				return;
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
 		List<String> containerIds = new ArrayList<>();
 		docker.clearArgs();
 		docker.addArgs("ps", "-a", "-q", "--filter", "network=" + network);
@@ -591,9 +712,11 @@ public class DockerExecutorUtils extends ExecutorUtils {
 
 		}).checkReturnCode();
 
-		for (String container : containerIds) {
+		if (!containerIds.isEmpty()) {
+			// Docker CLI stops multiple containers concurrently
 			docker.clearArgs();
-			docker.addArgs("container", "stop", container);
+			docker.addArgs("container", "stop", "-t", String.valueOf(Agent.containerStopTimeout));
+			docker.addArgs(containerIds.toArray(new String[0]));
 			docker.execute(new LineConsumer() {
 
 				@Override
@@ -611,7 +734,8 @@ public class DockerExecutorUtils extends ExecutorUtils {
 			}).checkReturnCode();
 
 			docker.clearArgs();
-			docker.addArgs("container", "rm", "-v", container);
+			docker.addArgs("container", "rm", "-v");
+			docker.addArgs(containerIds.toArray(new String[0]));
 			docker.execute(new LineConsumer() {
 
 				@Override
@@ -630,14 +754,18 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		}
 	}
 
-	private static void pullImage(Commandline docker, String image, TaskLogger jobLogger) {
+	public static void pullImage(Commandline docker, String image, TaskLogger jobLogger) {
+		ImageInfoCache.invalidate(docker, image);
 		docker.clearArgs();
 		docker.addArgs("pull", image);
 
+		AtomicBoolean downloaded = new AtomicBoolean(false);
 		docker.execute(new LineConsumer() {
 
 			@Override
 			public void consume(String line) {
+				if (line.startsWith("Status: Downloaded newer image"))
+					downloaded.set(true);
 				jobLogger.log(line);
 			}
 
@@ -649,20 +777,65 @@ public class DockerExecutorUtils extends ExecutorUtils {
 			}
 
 		}).checkReturnCode();
+
+		if (downloaded.get()) {
+			ImageCacheManager.recordMiss();
+			ImageCacheManager.recordPull(getImageInfo(docker, image, jobLogger, false).getSize());
+		} else {
+			ImageCacheManager.recordHit();
+		}
 	}
 
 	public static OsInfo getOsInfo(Commandline docker, String image, TaskLogger jobLogger, boolean pullIfNotExist) {
+		return getImageInfo(docker, image, jobLogger, pullIfNotExist).getOsInfo();
+	}
+
+	public static ImageInfo getImageInfo(Commandline docker, String image, TaskLogger jobLogger, boolean pullIfNotExist) {
+		ImageInfo imageInfo = ImageInfoCache.get(docker, image);
+		if (imageInfo == null) {
+			imageInfo = inspectImage(docker, image, jobLogger, pullIfNotExist);
+			ImageInfoCache.put(docker, image, imageInfo);
+		}
+		return imageInfo;
+	}
+
+	private static ImageInfo inspectImage(Commandline docker, String image, TaskLogger jobLogger, boolean pullIfNotExist) {
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				JsonNode imageNode = engine.inspectImage(image);
+				if (imageNode != null) {
+					if (pullIfNotExist)
+						ImageCacheManager.recordHit();
+					String digest = null;
+					if (imageNode.path("RepoDigests").size() != 0)
+						digest = imageNode.path("RepoDigests").get(0).asText();
+					OsInfo osInfo = newOsInfo(imageNode.path("Os").asText(), imageNode.path("OsVersion").asText(),
+							imageNode.path("Architecture").asText());
+					return new ImageInfo(imageNode.path("Id").asText(), digest, imageNode.path("Size").asLong(), osInfo);
+				} else if (pullIfNotExist) {
+					pullImage(docker, image, jobLogger);
+					return inspectImage(docker, image, jobLogger, false);
+				} else {
+					throw new ExplicitException("Error: No such image: " + image);
+				}
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
 		docker.clearArgs();
-		docker.addArgs("image", "inspect", image, "--format={{.Os}}%{{.OsVersion}}%{{.Architecture}}");
+		docker.addArgs("image", "inspect", image,
+				"--format={{.Os}}%{{.OsVersion}}%{{.Architecture}}%{{.Id}}%{{.Size}}%{{join .RepoDigests \",\"}}");
 
 		AtomicReference<String> imageNotExistError = new AtomicReference<>();
-		AtomicReference<String> osInfoString = new AtomicReference<>(null);
+		AtomicReference<String> imageInfoString = new AtomicReference<>(null);
 		ExecutionResult result = docker.execute(new LineConsumer() {
 
 			@Override
 			public void consume(String line) {
 				if (line.contains("%"))
-					osInfoString.set(line);
+					imageInfoString.set(line);
 			}
 
 		}, new LineConsumer() {
@@ -680,22 +853,31 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		if (imageNotExistError.get() != null) {
 			if (pullIfNotExist) {
 				pullImage(docker, image, jobLogger);
-				return getOsInfo(docker, image, jobLogger, false);
+				return inspectImage(docker, image, jobLogger, false);
 			} else {
 				throw new ExplicitException(imageNotExistError.get());
 			}
 		} else {
 			result.checkReturnCode();
-
-			List<String> fields = splitAndTrim(osInfoString.get(), "%");
-			String osName = WordUtils.capitalize(fields.get(0));
-			String osVersion = fields.get(1);
-			if (osName.equals("Windows"))
-				osVersion = StringUtils.substringBeforeLast(osVersion, ".");
-			return new OsInfo(osName, osVersion, fields.get(2));
+			if (pullIfNotExist)
+				ImageCacheManager.recordHit();
+
+			// Fields may be empty, for instance OS version of linux images
+			String[] fields = imageInfoString.get().split("%", -1);
+			OsInfo osInfo = newOsInfo(fields[0].trim(), fields[1].trim(), fields[2].trim());
+			String digest = StringUtils.substringBefore(fields[5].trim(), ",");
+			return new ImageInfo(fields[3].trim(), digest.length() != 0? digest: null,
+					Long.parseLong(fields[4].trim()), osInfo);
 		}
 	}
 
+	private static OsInfo newOsInfo(String os, String osVersion, String architecture) {
+		String osName = WordUtils.capitalize(os);
+		if (osName.equals("Windows"))
+			osVersion = StringUtils.substringBeforeLast(osVersion, ".");
+		return new OsInfo(osName, osVersion, architecture);
+	}
+
 	public static boolean isUseProcessIsolation(Commandline docker, String image, OsInfo nodeOsInfo,
 			TaskLogger jobLogger) {
 		if (SystemUtils.IS_OS_WINDOWS) {
@@ -830,6 +1012,93 @@ public class DockerExecutorUtils extends ExecutorUtils {
 		return hostInstallPath;
 	}
 
+	private static JsonNode getContainerState(Commandline docker, String containerName, TaskLogger jobLogger) {
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				JsonNode containerNode = engine.inspectContainer(containerName);
+				if (containerNode != null)
+					return containerNode.get("State");
+				else
+					throw new ExplicitException("No such container: " + containerName);
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
+		StringBuilder builder = new StringBuilder();
+		docker.clearArgs();
+		docker.addArgs("inspect", "--format={{json .State}}", containerName);
+		docker.execute(new LineConsumer(UTF_8.name()) {
+
+			@Override
+			public void consume(String line) {
+				builder.append(line).append("\n");
+			}
+
+		}, new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				jobLogger.log(line);
+			}
+
+		}).checkReturnCode();
+
+		try {
+			return Agent.objectMapper.readTree(builder.toString());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean checkServiceReadiness(Commandline docker, String containerName,
+												 ServiceFacade jobService, TaskLogger jobLogger) {
+		List<String> command;
+		if (SystemUtils.IS_OS_WINDOWS)
+			command = List.of("cmd", "/c", jobService.getReadinessCheckCommand());
+		else
+			command = List.of("sh", "-c", jobService.getReadinessCheckCommand());
+
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				DockerEngine.ExecResult result = engine.exec(containerName, command);
+				if (result != null) {
+					for (String line: Splitter.on('\n').omitEmptyStrings().split(result.getOutput()))
+						jobLogger.log("Service readiness check: " + line);
+					return result.getExitCode() == 0;
+				} else {
+					// Container stopped meanwhile, will be reported by next state check
+					return false;
+				}
+			} catch (IOException e) {
+				logEngineError(engine, e);
+			}
+		}
+
+		docker.clearArgs();
+		docker.addArgs("exec", containerName);
+		docker.addArgs(command.toArray(new String[0]));
+
+		ExecutionResult result = docker.execute(new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				jobLogger.log("Service readiness check: " + line);
+			}
+
+		}, new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				jobLogger.log("Service readiness check: " + line);
+			}
+
+		});
+		return result.getReturnCode() == 0;
+	}
+
 	@SuppressWarnings({ "resource", "unchecked" })
 	public static void startService(Commandline docker, String network, ServiceFacade jobService,
 									OsInfo nodeOsInfo, List<ImageMappingFacade> imageMappings,
@@ -886,59 +1155,14 @@ public class DockerExecutorUtils extends ExecutorUtils {
 
 		jobLogger.log("Waiting for service to be ready...");
 
+		long startTime = System.currentTimeMillis();
+		long checkInterval = MIN_READINESS_CHECK_INTERVAL;
 		while (true) {
-			StringBuilder builder = new StringBuilder();
-			docker.clearArgs();
-			docker.addArgs("inspect", containerName);
-			docker.execute(new LineConsumer(UTF_8.name()) {
-
-				@Override
-				public void consume(String line) {
-					builder.append(line).append("\n");
-				}
-
-			}, new LineConsumer() {
-
-				@Override
-				public void consume(String line) {
-					jobLogger.log(line);
-				}
-
-			}).checkReturnCode();
-
-			JsonNode stateNode;
-			try {
-				stateNode = Agent.objectMapper.readTree(builder.toString()).iterator().next().get("State");
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			JsonNode stateNode = getContainerState(docker, containerName, jobLogger);
 
 			if (stateNode.get("Status").asText().equals("running")) {
-				docker.clearArgs();
-				docker.addArgs("exec", containerName);
-
-				if (SystemUtils.IS_OS_WINDOWS)
-					docker.addArgs("cmd", "/c", jobService.getReadinessCheckCommand());
-				else
-					docker.addArgs("sh", "-c", jobService.getReadinessCheckCommand());
-
-				ExecutionResult result = docker.execute(new LineConsumer() {
-
-					@Override
-					public void consume(String line) {
-						jobLogger.log("Service readiness check: " + line);
-					}
-
-				}, new LineConsumer() {
-
-					@Override
-					public void consume(String line) {
-						jobLogger.log("Service readiness check: " + line);
-					}
-
-				});
-				if (result.getReturnCode() == 0) {
-					jobLogger.log("Service is ready");
+				if (checkServiceReadiness(docker, containerName, jobService, jobLogger)) {
+					jobLogger.log(String.format("Service is ready (took %d ms)", System.currentTimeMillis() - startTime));
 					break;
 				}
 			} else if (stateNode.get("Status").asText().equals("exited")) {
@@ -969,11 +1193,13 @@ public class DockerExecutorUtils extends ExecutorUtils {
 						String.format("Service '" + jobService.getName() + "' is stopped unexpectedly"));
 			}
 
+			// Most services get ready quickly, while some take minutes
 			try {
-				Thread.sleep(10000);
+				Thread.sleep(checkInterval);
 			} catch (InterruptedException e) {
 				throw new RuntimeException(e);
 			}
+			checkInterval = Math.min(checkInterval * 2, MAX_READINESS_CHECK_INTERVAL);
 		}
 	}
 
@@ -13,9 +13,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static io.onedev.agent.DockerExecutorUtils.getErrorMessage;
 import static io.onedev.k8shelper.KubernetesHelper.formatDuration;
@@ -111,6 +116,69 @@ public class ExecutorUtils {
 			} else {
 				throw ExceptionUtils.unchecked(e);
 			}
+		} finally {
+			if (logger instanceof JobLogger)
+				((JobLogger) logger).flush();
 		}
 	}
+
+	/**
+	 * Run specified tasks with at most specified number of them running at the same time.
+	 * If a task fails or current thread is interrupted, running tasks are interrupted and
+	 * remaining tasks are skipped. This method returns only after all started tasks finish
+	 */
+	public static void runConcurrently(List<? extends Callable<?>> tasks, int maxConcurrency, Executor executor) {
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Set<Thread> threads = new HashSet<>();
+		Semaphore permits = new Semaphore(maxConcurrency);
+		try {
+			for (var task: tasks) {
+				permits.acquire();
+				if (error.get() != null) {
+					permits.release();
+					break;
+				}
+				executor.execute(() -> {
+					synchronized (threads) {
+						threads.add(Thread.currentThread());
+					}
+					try {
+						if (error.get() == null)
+							task.call();
+					} catch (Throwable e) {
+						if (error.compareAndSet(null, e))
+							interrupt(threads);
+					} finally {
+						synchronized (threads) {
+							threads.remove(Thread.currentThread());
+						}
+						// Do not leak interruption to next task of the pool thread
+						Thread.interrupted();
+						permits.release();
+					}
+				});
+			}
+			permits.acquire(maxConcurrency);
+		} catch (InterruptedException e) {
+			error.compareAndSet(null, e);
+			interrupt(threads);
+			permits.acquireUninterruptibly(maxConcurrency);
+		}
+
+		Throwable throwable = error.get();
+		if (throwable instanceof Error)
+			throw (Error) throwable;
+		else if (throwable != null)
+			throw ExceptionUtils.unchecked((Exception) throwable);
+	}
+
+	private static void interrupt(Set<Thread> threads) {
+		synchronized (threads) {
+			for (Thread thread: threads) {
+				if (thread != Thread.currentThread())
+					thread.interrupt();
+			}
+		}
+	}
+
 }
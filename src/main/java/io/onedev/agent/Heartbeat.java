@@ -0,0 +1,189 @@
+package io.onedev.agent;
+
+import io.onedev.commons.bootstrap.Bootstrap;
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a websocket session alive with ping frames sent from the shared websocket scheduler.
+ * Matching pong frames are used to measure round trip time, from which session idle timeout
+ * is derived. Pings are skipped if some frame was received and some message was written
+ * within last interval, as the connection is known to be alive in both directions then.
+ * Servers not accepting {@link Capabilities#HEARTBEAT_PING}
+ * additionally get the legacy {@link MessageTypes#HEART_BEAT} message
+ */
+public class Heartbeat {
+
+	private static final Logger logger = LoggerFactory.getLogger(Heartbeat.class);
+
+	private static final Map<Session, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+
+	private static final long INTERVAL = Agent.SOCKET_IDLE_TIMEOUT/3;
+
+	/*
+	 * A ping may be skipped for almost one interval after last received frame, and sent one
+	 * interval later, so two intervals may pass before a pong arrives
+	 */
+	private static final long MIN_IDLE_TIMEOUT = 2*INTERVAL + 5000;
+
+	private static final long MAX_IDLE_TIMEOUT = 4*Agent.SOCKET_IDLE_TIMEOUT;
+
+	private static final double SMOOTHING = 0.125;
+
+	private static final double VARIANCE_SMOOTHING = 0.25;
+
+	private static final Message HEART_BEAT = new Message(MessageTypes.HEART_BEAT, new byte[0]);
+
+	private final Session session;
+
+	private final boolean legacy;
+
+	private ScheduledFuture<?> task;
+
+	private volatile long lastReceived = System.nanoTime();
+
+	private volatile double rttMillis = -1;
+
+	private volatile double rttVarianceMillis;
+
+	private volatile long idleTimeout = Agent.SOCKET_IDLE_TIMEOUT;
+
+	private volatile long pings;
+
+	private volatile long skipped;
+
+	private volatile long lastWritten;
+
+	private Heartbeat(Session session) {
+		this.session = session;
+		legacy = !Capabilities.isEnabled(session, Capabilities.HEARTBEAT_PING);
+	}
+
+	public static Heartbeat open(Session session) {
+		Heartbeat heartbeat = new Heartbeat(session);
+		heartbeats.put(session, heartbeat);
+		heartbeat.task = WebsocketUtils.getScheduler().scheduleWithFixedDelay(
+				() -> Bootstrap.executorService.execute(heartbeat::beat),
+				INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+		return heartbeat;
+	}
+
+	@Nullable
+	public static Heartbeat of(Session session) {
+		return heartbeats.get(session);
+	}
+
+	public static void close(Session session) {
+		Heartbeat heartbeat = heartbeats.remove(session);
+		if (heartbeat != null) {
+			heartbeat.task.cancel(false);
+			logger.debug("Heartbeat closed ({})", heartbeat);
+		}
+	}
+
+	private void beat() {
+		if (!session.isOpen())
+			return;
+		try {
+			boolean written = hasWritten();
+			if (legacy)
+				HEART_BEAT.sendBy(session);
+			if (System.nanoTime() - lastReceived < TimeUnit.MILLISECONDS.toNanos(INTERVAL) && written) {
+				skipped++;
+			} else {
+				ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+				payload.putLong(0, System.nanoTime());
+				synchronized (session) {
+					session.getRemote().sendPing(payload);
+				}
+				pings++;
+			}
+		} catch (Exception e) {
+			logger.error("Error pinging server", e);
+			try {
+				session.disconnect();
+			} catch (Exception e2) {
+			}
+		}
+	}
+
+	/**
+	 * @return whether outbound queue wrote some message since last beat. Inbound traffic alone
+	 * does not tell whether our writes still go through
+	 */
+	private boolean hasWritten() {
+		OutboundQueue queue = OutboundQueue.of(session);
+		if (queue == null)
+			return false;
+		long written = queue.getWritten();
+		boolean progressed = written != lastWritten;
+		lastWritten = written;
+		return progressed;
+	}
+
+	/**
+	 * Called whenever a frame is received from server
+	 */
+	public void onReceived() {
+		lastReceived = System.nanoTime();
+	}
+
+	public void onPong(ByteBuffer payload) {
+		onReceived();
+		if (payload.remaining() != Long.BYTES)
+			return;
+		double sample = (System.nanoTime() - payload.getLong(payload.position())) / 1000000.0;
+		if (sample < 0)
+			return;
+		double rtt = rttMillis;
+		if (rtt < 0) {
+			rttMillis = sample;
+			rttVarianceMillis = sample / 2;
+		} else {
+			rttVarianceMillis += VARIANCE_SMOOTHING * (Math.abs(sample - rtt) - rttVarianceMillis);
+			rttMillis = rtt + SMOOTHING * (sample - rtt);
+		}
+
+		// Allow for latency spikes in the same way as TCP retransmission timeout
+		long timeout = 2*INTERVAL + (long) (4 * (rttMillis + 4 * rttVarianceMillis));
+		timeout = Math.max(MIN_IDLE_TIMEOUT, Math.min(MAX_IDLE_TIMEOUT, timeout));
+		if (Math.abs(timeout - idleTimeout) >= 1000) {
+			idleTimeout = timeout;
+			session.setIdleTimeout(timeout);
+		}
+	}
+
+	/**
+	 * @return smoothed round trip time in milliseconds, or <tt>-1</tt> if not measured yet
+	 */
+	public long getRttMillis() {
+		return Math.round(rttMillis);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public long getPings() {
+		return pings;
+	}
+
+	public long getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("rtt millis: %d, idle timeout: %d, pings: %d, skipped: %d",
+				getRttMillis(), getIdleTimeout(), getPings(), getSkipped());
+	}
+
+}
@@ -0,0 +1,194 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.ExplicitException;
+import io.onedev.commons.utils.command.Commandline;
+import io.onedev.commons.utils.command.ExecutionResult;
+import io.onedev.commons.utils.command.LineConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-running busybox container per docker daemon with agent work dir mounted at the same
+ * path. File operations requiring root permission run inside it instead of starting a new
+ * container each time. Commands are executed via {@link DockerEngine} if possible, and via
+ * <tt>docker exec</tt> otherwise. The container is recreated if it disappears
+ */
+public class HelperContainer {
+
+	private static final Logger logger = LoggerFactory.getLogger(HelperContainer.class);
+
+	private static final String IMAGE = "busybox";
+
+	private static final Map<String, HelperContainer> containers = new ConcurrentHashMap<>();
+
+	private final String dockerPath;
+
+	private final String dockerHost;
+
+	private final String name;
+
+	private boolean started;
+
+	private HelperContainer(String dockerPath, @Nullable String dockerHost, String name) {
+		this.dockerPath = dockerPath;
+		this.dockerHost = dockerHost;
+		this.name = name;
+	}
+
+	/**
+	 * @return helper container of daemon specified docker command talks to
+	 */
+	public static HelperContainer of(Commandline docker) {
+		String dockerHost = docker.environments().get("DOCKER_HOST");
+		return containers.computeIfAbsent(DockerExecutorUtils.getDaemonKey(docker), it -> {
+			// Agents on same host may share a daemon
+			String suffix = Integer.toHexString((Agent.getWorkDir().getAbsolutePath() + it).hashCode());
+			return new HelperContainer(docker.executable(), dockerHost, "onedev-agent-helper-" + suffix);
+		});
+	}
+
+	/**
+	 * @return whether or not specified file is accessible from helper containers
+	 */
+	public static boolean isAccessible(File file) {
+		return file.getAbsoluteFile().toPath().normalize().startsWith(
+				Agent.getWorkDir().getAbsoluteFile().toPath().normalize());
+	}
+
+	/**
+	 * Remove all started helper containers. Called on agent shutdown
+	 */
+	public static void removeAll() {
+		for (HelperContainer container: containers.values()) {
+			try {
+				container.remove();
+			} catch (Exception e) {
+				logger.error("Error removing helper container", e);
+			}
+		}
+	}
+
+	private Commandline newDocker() {
+		Commandline docker = new Commandline(dockerPath);
+		if (dockerHost != null)
+			docker.environments().put("DOCKER_HOST", dockerHost);
+		return docker;
+	}
+
+	private synchronized void start() {
+		if (!started) {
+			Commandline docker = newDocker();
+			// Remove container left by previous agent process if any
+			docker.addArgs("rm", "-f", name);
+			docker.execute(newDebugLogger(), newDebugLogger());
+
+			String workPath = Agent.getWorkDir().getAbsolutePath();
+			docker.clearArgs();
+			docker.addArgs("run", "-d", "--rm", "--name=" + name, "-v", workPath + ":" + workPath,
+					IMAGE, "sleep", String.valueOf(Integer.MAX_VALUE));
+			docker.execute(newDebugLogger(), new LineConsumer() {
+
+				@Override
+				public void consume(String line) {
+					if (line.contains("Error response from daemon"))
+						logger.error(line);
+					else
+						logger.info(line);
+				}
+
+			}).checkReturnCode();
+			started = true;
+		}
+	}
+
+	private synchronized void remove() {
+		if (started) {
+			Commandline docker = newDocker();
+			docker.addArgs("rm", "-f", name);
+			docker.execute(newDebugLogger(), newDebugLogger());
+			started = false;
+		}
+	}
+
+	/**
+	 * Run specified command inside helper container as root
+	 *
+	 * @throws ExplicitException if command fails
+	 */
+	public void exec(String... command) {
+		start();
+		if (!doExec(Arrays.asList(command))) {
+			synchronized (this) {
+				started = false;
+			}
+			start();
+			if (!doExec(Arrays.asList(command)))
+				throw new ExplicitException("Helper container is not running: " + name);
+		}
+	}
+
+	private boolean doExec(List<String> command) {
+		Commandline docker = newDocker();
+		DockerEngine engine = DockerEngine.of(docker);
+		if (engine != null) {
+			try {
+				DockerEngine.ExecResult result = engine.exec(name, command);
+				if (result == null)
+					return false;
+				if (result.getOutput().length() != 0)
+					logger.info(result.getOutput());
+				if (result.getExitCode() != 0)
+					throw new ExplicitException("Helper command failed (command: " + command + ", exit code: " + result.getExitCode() + ")");
+				return true;
+			} catch (IOException e) {
+				logger.warn("Error executing helper command via docker engine, falling back to docker CLI", e);
+			}
+		}
+
+		StringBuilder errors = new StringBuilder();
+		docker.addArgs("exec", name);
+		docker.addArgs(command.toArray(new String[0]));
+		ExecutionResult result = docker.execute(new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				logger.info(line);
+			}
+
+		}, new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				errors.append(line).append("\n");
+			}
+
+		});
+		if (result.getReturnCode() != 0) {
+			if (errors.indexOf("No such container") != -1 || errors.indexOf("is not running") != -1)
+				return false;
+			logger.error(errors.toString().trim());
+			result.checkReturnCode();
+		}
+		return true;
+	}
+
+	private static LineConsumer newDebugLogger() {
+		return new LineConsumer() {
+
+			@Override
+			public void consume(String line) {
+				logger.debug(line);
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,227 @@
+package io.onedev.agent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.onedev.commons.bootstrap.Bootstrap;
+import io.onedev.commons.utils.command.Commandline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks last use of images referenced by jobs, and keeps total size of local images within
+ * {@link Agent#imageCacheBudget} by removing least recently used ones while agent is idle.
+ * Only images used by jobs of this agent are removed, and images listed in
+ * {@link Agent#pinnedImages} are never removed. Removal requires {@link DockerEngine}, and
+ * only usage is tracked if daemon is accessed via docker CLI
+ */
+public class ImageCacheManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(ImageCacheManager.class);
+
+	private static final long EVICT_INTERVAL = 600000;
+
+	private static final String USAGE_FILE = "image-usage.properties";
+
+	// Last use of images keyed by daemon key and image reference
+	private static final Map<String, Map<String, Long>> usages = new ConcurrentHashMap<>();
+
+	private static final Map<String, Commandline> daemons = new ConcurrentHashMap<>();
+
+	private static final AtomicLong hits = new AtomicLong();
+
+	private static final AtomicLong misses = new AtomicLong();
+
+	private static final AtomicLong bytesPulled = new AtomicLong();
+
+	private static final AtomicLong evictions = new AtomicLong();
+
+	private static volatile ScheduledFuture<?> evictor;
+
+	private static volatile boolean loaded;
+
+	private static final Object evictionLock = new Object();
+
+	/**
+	 * Record use of specified image by a job
+	 */
+	public static void recordUse(Commandline docker, String image) {
+		start();
+		String daemonKey = DockerExecutorUtils.getDaemonKey(docker);
+		daemons.computeIfAbsent(daemonKey, it -> {
+			Commandline daemonDocker = new Commandline(docker.executable());
+			String dockerHost = docker.environments().get("DOCKER_HOST");
+			if (dockerHost != null)
+				daemonDocker.environments().put("DOCKER_HOST", dockerHost);
+			return daemonDocker;
+		});
+		usages.computeIfAbsent(daemonKey, it -> new ConcurrentHashMap<>()).put(image, System.currentTimeMillis());
+	}
+
+	public static void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	public static void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	public static void recordPull(long bytes) {
+		bytesPulled.addAndGet(bytes);
+	}
+
+	public static Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("imageCacheHits", hits.get());
+		metrics.put("imageCacheMisses", misses.get());
+		metrics.put("imageBytesPulled", bytesPulled.get());
+		metrics.put("imageEvictions", evictions.get());
+		return metrics;
+	}
+
+	private static synchronized void start() {
+		if (!loaded) {
+			load();
+			loaded = true;
+		}
+		if (evictor == null && Agent.imageCacheBudget > 0) {
+			evictor = WebsocketUtils.getScheduler().scheduleWithFixedDelay(() -> Bootstrap.executorService.execute(() -> {
+				if (AgentSocket.getRunningJobTokens().isEmpty())
+					evict();
+				save();
+			}), EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Remove least recently used images of all daemons until total size of local images is
+	 * within budget. Jobs recording image usages are not blocked while this is running
+	 */
+	static void evict() {
+		synchronized (evictionLock) {
+			for (var entry: daemons.entrySet()) {
+				DockerEngine engine = DockerEngine.of(entry.getValue());
+				Map<String, Long> daemonUsages = usages.get(entry.getKey());
+				if (engine != null && daemonUsages != null) {
+					try {
+						evict(engine, entry.getValue(), daemonUsages);
+					} catch (Exception e) {
+						logger.error("Error evicting images via '" + engine.getSocketPath() + "'", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes freed
+	 */
+	static long evict(DockerEngine engine, Commandline docker, Map<String, Long> daemonUsages) throws IOException {
+		long totalSize = 0;
+		Map<String, JsonNode> images = new HashMap<>();
+		for (JsonNode imageNode: engine.listImages()) {
+			totalSize += imageNode.path("Size").asLong();
+			for (JsonNode tagNode: imageNode.path("RepoTags"))
+				images.put(tagNode.asText(), imageNode);
+			for (JsonNode digestNode: imageNode.path("RepoDigests"))
+				images.put(digestNode.asText(), imageNode);
+		}
+
+		long freed = 0;
+		List<Map.Entry<String, Long>> candidates = new ArrayList<>(daemonUsages.entrySet());
+		candidates.sort(Map.Entry.comparingByValue());
+		for (var candidate: candidates) {
+			if (totalSize - freed <= Agent.imageCacheBudget)
+				break;
+			String image = candidate.getKey();
+			if (isPinned(image))
+				continue;
+			JsonNode imageNode = images.get(normalize(image));
+			if (imageNode == null) {
+				// Removed by others
+				daemonUsages.remove(image);
+				continue;
+			}
+			if (engine.removeImage(image)) {
+				daemonUsages.remove(image);
+				ImageInfoCache.invalidate(docker, image);
+				// Removing one of multiple references of an image only untags it
+				String imageId = imageNode.path("Id").asText();
+				if (engine.inspectImage(imageId) == null) {
+					logger.info("Evicted image '{}' (last used: {})", image, new Date(candidate.getValue()));
+					freed += imageNode.path("Size").asLong();
+					evictions.incrementAndGet();
+				} else {
+					logger.debug("Untagged image '{}' as it is still referenced otherwise", image);
+				}
+			}
+		}
+		return freed;
+	}
+
+	private static boolean isPinned(String image) {
+		for (String pinnedImage: Agent.pinnedImages) {
+			if (normalize(pinnedImage).equals(normalize(image)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add default tag to specified image reference as reported in <tt>RepoTags</tt>
+	 */
+	private static String normalize(String image) {
+		if (image.contains("@") || image.lastIndexOf(':') > image.lastIndexOf('/'))
+			return image;
+		else
+			return image + ":latest";
+	}
+
+	private static File getUsageFile() {
+		return new File(Agent.getWorkDir(), USAGE_FILE);
+	}
+
+	private static void load() {
+		File file = getUsageFile();
+		if (file.exists()) {
+			Properties props = new Properties();
+			try (InputStream is = new FileInputStream(file)) {
+				props.load(is);
+			} catch (Exception e) {
+				logger.error("Error loading image usages", e);
+				return;
+			}
+			for (String key: props.stringPropertyNames()) {
+				int index = key.lastIndexOf('|');
+				if (index != -1) {
+					usages.computeIfAbsent(key.substring(0, index), it -> new ConcurrentHashMap<>())
+							.putIfAbsent(key.substring(index+1), Long.parseLong(props.getProperty(key)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Persist image usages so that eviction order survives agent restart
+	 */
+	public static void save() {
+		if (!loaded)
+			return;
+		Properties props = new Properties();
+		for (var entry: usages.entrySet()) {
+			for (var usage: entry.getValue().entrySet())
+				props.setProperty(entry.getKey() + "|" + usage.getKey(), String.valueOf(usage.getValue()));
+		}
+		try (OutputStream os = new FileOutputStream(getUsageFile())) {
+			props.store(os, null);
+		} catch (Exception e) {
+			logger.error("Error saving image usages", e);
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package io.onedev.agent;
+
+import io.onedev.k8shelper.OsInfo;
+
+import javax.annotation.Nullable;
+
+public class ImageInfo {
+
+	private final String id;
+
+	private final String digest;
+
+	private final long size;
+
+	private final OsInfo osInfo;
+
+	public ImageInfo(String id, @Nullable String digest, long size, OsInfo osInfo) {
+		this.id = id;
+		this.digest = digest;
+		this.size = size;
+		this.osInfo = osInfo;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return repository digest of the image, or <tt>null</tt> if image is built locally
+	 */
+	@Nullable
+	public String getDigest() {
+		return digest;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public OsInfo getOsInfo() {
+		return osInfo;
+	}
+
+}
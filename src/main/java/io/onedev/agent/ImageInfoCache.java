@@ -0,0 +1,101 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.command.Commandline;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata of recently used images shared by all jobs, so that steps and services do not
+ * need to inspect their images again. Metadata is keyed by daemon and image id as it never
+ * changes for an id. Image references are mapped to ids only for a short while, as a
+ * reference may point to a different image at any time, for instance after the image is
+ * pulled, built or tagged, even outside of the agent
+ */
+public class ImageInfoCache {
+
+	private static final int MAX_ENTRIES = 256;
+
+	private static final long REFERENCE_TTL = 60000;
+
+	private static final Map<String, ImageInfo> infos = new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ImageInfo> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+
+	};
+
+	private static final Map<String, ImageReference> references = new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ImageReference> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+
+	};
+
+	private static String getKey(Commandline docker, String image) {
+		return DockerExecutorUtils.getDaemonKey(docker) + "/" + image;
+	}
+
+	@Nullable
+	public static ImageInfo get(Commandline docker, String image) {
+		String key = getKey(docker, image);
+		synchronized (infos) {
+			ImageReference reference = references.get(key);
+			if (reference == null) {
+				return null;
+			} else if (System.currentTimeMillis() - reference.timestamp > REFERENCE_TTL) {
+				references.remove(key);
+				return null;
+			} else {
+				return infos.get(getKey(docker, reference.imageId));
+			}
+		}
+	}
+
+	public static void put(Commandline docker, String image, ImageInfo info) {
+		synchronized (infos) {
+			references.put(getKey(docker, image), new ImageReference(info.getId()));
+			infos.put(getKey(docker, info.getId()), info);
+		}
+	}
+
+	public static void invalidate(Commandline docker, String image) {
+		synchronized (infos) {
+			references.remove(getKey(docker, image));
+		}
+	}
+
+	/**
+	 * Invalidate all image references of daemon specified docker command talks to
+	 */
+	public static void invalidateAll(Commandline docker) {
+		String prefix = DockerExecutorUtils.getDaemonKey(docker) + "/";
+		synchronized (infos) {
+			references.keySet().removeIf(it -> it.startsWith(prefix));
+		}
+	}
+
+	public static int size() {
+		synchronized (infos) {
+			return infos.size();
+		}
+	}
+
+	private static class ImageReference {
+
+		final String imageId;
+
+		final long timestamp = System.currentTimeMillis();
+
+		ImageReference(String imageId) {
+			this.imageId = imageId;
+		}
+
+	}
+
+}
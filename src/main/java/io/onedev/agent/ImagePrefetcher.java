@@ -0,0 +1,187 @@
+package io.onedev.agent;
+
+import io.onedev.agent.job.RegistryLoginFacade;
+import io.onedev.commons.utils.ExceptionUtils;
+import io.onedev.commons.utils.StringUtils;
+import io.onedev.commons.utils.TaskLogger;
+import io.onedev.commons.utils.command.Commandline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Pulls images of a job in background while earlier steps such as checkout are running,
+ * so that a step only waits for its own image if it is still being pulled. Failing to
+ * prefetch is not fatal, as image will be pulled again when used. If images should always
+ * be pulled, each image is pulled only once per job and pinned to its digest, so that all
+ * steps of the job run the same image
+ */
+public class ImagePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ImagePrefetcher.class);
+
+	private static final int MAX_CONCURRENT_PULLS = 3;
+
+	private final Supplier<Commandline> dockerSupplier;
+
+	private final Collection<RegistryLoginFacade> registryLogins;
+
+	private final boolean alwaysPull;
+
+	private final TaskLogger jobLogger;
+
+	private final Semaphore permits = new Semaphore(MAX_CONCURRENT_PULLS);
+
+	private final Map<String, Future<?>> pulls = new ConcurrentHashMap<>();
+
+	private final Map<String, Future<String>> pins = new ConcurrentHashMap<>();
+
+	private volatile boolean closed;
+
+	public ImagePrefetcher(Supplier<Commandline> dockerSupplier, Collection<RegistryLoginFacade> registryLogins,
+						   boolean alwaysPull, TaskLogger jobLogger) {
+		this.dockerSupplier = dockerSupplier;
+		this.registryLogins = registryLogins;
+		this.alwaysPull = alwaysPull;
+		this.jobLogger = jobLogger;
+	}
+
+	/**
+	 * Start pulling specified images
+	 *
+	 * @param images map of image to built-in registry login used to pull it
+	 */
+	public void prefetch(LinkedHashMap<String, BuiltInRegistryLogin> images, Executor executor) {
+		if (images.isEmpty())
+			return;
+		jobLogger.log("Prefetching " + images.size() + " image(s) in background...");
+		for (var entry: images.entrySet()) {
+			String image = entry.getKey();
+			ImageCacheManager.recordUse(dockerSupplier.get(), image);
+			FutureTask<Void> pull = new FutureTask<>(() -> {
+				permits.acquire();
+				try {
+					if (!closed)
+						pull(image, entry.getValue());
+				} finally {
+					permits.release();
+				}
+				return null;
+			});
+			if (pulls.putIfAbsent(image, pull) == null)
+				executor.execute(pull);
+		}
+	}
+
+	private void pull(String image, @Nullable BuiltInRegistryLogin builtInRegistryLogin) {
+		long time = System.currentTimeMillis();
+		Commandline docker = dockerSupplier.get();
+		TaskLogger pullLogger = new TaskLogger() {
+
+			@Override
+			public void log(String message, @Nullable String sessionId) {
+				logger.debug(message);
+			}
+
+		};
+		DockerExecutorUtils.callWithDockerConfig(docker, registryLogins, builtInRegistryLogin, () -> {
+			if (alwaysPull)
+				DockerExecutorUtils.pullImage(docker, image, pullLogger);
+			else
+				DockerExecutorUtils.getImageInfo(docker, image, pullLogger, true);
+			return null;
+		});
+		logger.debug("Prefetched image '{}' ({} ms)", image, System.currentTimeMillis() - time);
+	}
+
+	/**
+	 * Wait for prefetching of specified image to finish, if it is being prefetched
+	 */
+	public void await(String image) {
+		Future<?> pull = pulls.get(image);
+		if (pull != null && !pull.isDone()) {
+			jobLogger.log("Waiting for image '" + image + "' to be prefetched...");
+			try {
+				pull.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException | CancellationException e) {
+				Throwable cause = e instanceof ExecutionException? e.getCause(): e;
+				jobLogger.warning("Error prefetching image '" + image + "': " + cause.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get reference of specified image to run. If images should always be pulled, the image
+	 * is pulled at its first use in the job unless already prefetched, and an immutable
+	 * reference of it is returned for this and later uses, which can be run with
+	 * <tt>--pull=never</tt>
+	 *
+	 * @param docker docker command with registry logins configured
+	 */
+	public String pin(Commandline docker, String image) {
+		await(image);
+		if (!alwaysPull)
+			return image;
+
+		FutureTask<String> pin = new FutureTask<>(() -> {
+			if (!isPrefetched(image))
+				DockerExecutorUtils.pullImage(docker, image, jobLogger);
+			ImageInfo imageInfo = DockerExecutorUtils.getImageInfo(docker, image, jobLogger, false);
+			String repository = StringUtils.substringBefore(image, "@");
+			if (repository.lastIndexOf(':') > repository.lastIndexOf('/'))
+				repository = repository.substring(0, repository.lastIndexOf(':'));
+			// Digest of other repositories may be reported for image tagged multiple times
+			String reference;
+			if (imageInfo.getDigest() != null && imageInfo.getDigest().startsWith(repository + "@"))
+				reference = imageInfo.getDigest();
+			else
+				reference = imageInfo.getId();
+			jobLogger.log("Pinned image '" + image + "' to '" + reference + "'");
+			return reference;
+		});
+		Future<String> existingPin = pins.putIfAbsent(image, pin);
+		if (existingPin == null) {
+			existingPin = pin;
+			pin.run();
+		}
+		try {
+			return existingPin.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			// Let later uses try again
+			pins.remove(image, existingPin);
+			throw ExceptionUtils.unchecked((Exception) e.getCause());
+		}
+	}
+
+	private boolean isPrefetched(String image) {
+		Future<?> pull = pulls.get(image);
+		if (pull != null && pull.isDone() && !pull.isCancelled()) {
+			try {
+				pull.get();
+				return true;
+			} catch (Exception e) {
+				return false;
+			}
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Skip pulls not started yet. Called when job finishes
+	 */
+	public void close() {
+		closed = true;
+	}
+
+}
@@ -0,0 +1,95 @@
+package io.onedev.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs inbound message handlers off the websocket I/O thread. Handlers dispatched with the
+ * same lane key run one after another in dispatch order, while handlers of different lanes
+ * run concurrently, so that a slow handler only holds back messages of its own lane
+ */
+public class InboundDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(InboundDispatcher.class);
+
+	/*
+	 * Max handlers run by a lane before yielding its thread to other work
+	 */
+	private static final int MAX_BATCH = 64;
+
+	private final Executor executor;
+
+	private final Map<String, Lane> lanes = new HashMap<>();
+
+	public InboundDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param laneKey key of the lane to run handler in, or <tt>null</tt> if handler does not
+	 * need to be ordered against other handlers
+	 */
+	public void dispatch(@Nullable String laneKey, Runnable handler) {
+		if (laneKey == null) {
+			executor.execute(handler);
+			return;
+		}
+		Lane lane;
+		synchronized (lanes) {
+			lane = lanes.computeIfAbsent(laneKey, Lane::new);
+			lane.handlers.add(handler);
+			if (lane.scheduled)
+				return;
+			lane.scheduled = true;
+		}
+		executor.execute(lane);
+	}
+
+	public int getLaneCount() {
+		synchronized (lanes) {
+			return lanes.size();
+		}
+	}
+
+	private class Lane implements Runnable {
+
+		final String key;
+
+		final ArrayDeque<Runnable> handlers = new ArrayDeque<>();
+
+		boolean scheduled;
+
+		Lane(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			for (int i=0; i<MAX_BATCH; i++) {
+				Runnable handler;
+				synchronized (lanes) {
+					handler = handlers.poll();
+					if (handler == null) {
+						scheduled = false;
+						lanes.remove(key);
+						return;
+					}
+				}
+				try {
+					handler.run();
+				} catch (Throwable e) {
+					logger.error("Error running handler of lane '" + key + "'", e);
+				}
+			}
+			executor.execute(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,53 @@
+package io.onedev.agent;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+public class JavaPayloadCodec implements PayloadCodec {
+
+	public static final JavaPayloadCodec INSTANCE = new JavaPayloadCodec();
+
+	private static final int STREAM_MAGIC = 0xACED;
+
+	@Override
+	public String getName() {
+		return "java";
+	}
+
+	@Override
+	public byte[] encode(Serializable payload) {
+		return SerializationUtils.serialize(payload);
+	}
+
+	@Override
+	public void encode(Serializable payload, OutputStream output) {
+		SerializationUtils.serialize(payload, output);
+	}
+
+	@Override
+	public boolean accepts(ByteBuffer data) {
+		return data.remaining() >= 2 && (data.getShort(data.position()) & 0xFFFF) == STREAM_MAGIC;
+	}
+
+	@Override
+	public Serializable decode(ByteBuffer data) {
+		if (data.hasArray()) {
+			return SerializationUtils.deserialize(new ByteArrayInputStream(
+					data.array(), data.arrayOffset() + data.position(), data.remaining()));
+		} else {
+			byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			return SerializationUtils.deserialize(bytes);
+		}
+	}
+
+	public Serializable decode(InputStream input) {
+		return SerializationUtils.deserialize(input);
+	}
+
+}
@@ -0,0 +1,277 @@
+package io.onedev.agent;
+
+import io.onedev.commons.bootstrap.Bootstrap;
+import io.onedev.commons.utils.TaskLogger;
+import org.eclipse.jetty.websocket.api.Session;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Logger sending job logs to server. If server accepts batched job logs, lines are coalesced
+ * into a single {@link MessageTypes#JOB_LOG_BATCH} message until either size or time budget
+ * is reached. Otherwise each line is sent as a {@link MessageTypes#JOB_LOG} message. Job
+ * token is identified by a channel id instead of being repeated in each message if server
+ * accepts {@link Capabilities#STREAM_CHANNELS}.
+ * <p>
+ * If server accepts {@link Capabilities#SESSION_RESUME}, log messages produced while agent is
+ * disconnected are spooled in memory up to {@link #MAX_SPOOL_BYTES} across all jobs, and
+ * replayed via the new session after agent reconnects. Otherwise they are discarded.
+ * <p>
+ * Log messages are sent over {@link BulkConnection} if available
+ */
+public class JobLogger extends TaskLogger {
+
+	private static final int MAX_BATCH_BYTES = 64*1024;
+
+	private static final long MAX_BATCH_DELAY = 100;
+
+	private static final long MAX_SPOOL_BYTES = 32*1024*1024;
+
+	private static final AtomicLong spooledBytes = new AtomicLong();
+
+	private static final Map<String, JobLogger> spooling = new ConcurrentHashMap<>();
+
+	private final String jobToken;
+
+	private final byte[] legacyPrefix;
+
+	private final boolean batching;
+
+	private final int channelId;
+
+	private final ArrayDeque<Message> spool = new ArrayDeque<>();
+
+	private volatile Session session;
+
+	private BinaryWriter batch;
+
+	private int batchCount;
+
+	private boolean flushScheduled;
+
+	private long discarded;
+
+	private boolean closed;
+
+	public JobLogger(Session session, String jobToken) {
+		this.session = session;
+		this.jobToken = jobToken;
+		legacyPrefix = (jobToken + ":").getBytes(UTF_8);
+		batching = Capabilities.isEnabled(session, Capabilities.JOB_LOG_BATCH);
+		if (Capabilities.isEnabled(session, Capabilities.STREAM_CHANNELS))
+			channelId = Channels.getId(jobToken);
+		else
+			channelId = -1;
+	}
+
+	public String getJobToken() {
+		return jobToken;
+	}
+
+	@Override
+	public void log(String message, @Nullable String sessionId) {
+		if (batching) {
+			synchronized (this) {
+				if (batch == null)
+					batch = new BinaryWriter(1024);
+				batch.writeString(sessionId != null? sessionId: "");
+				batch.writeString(message);
+				batchCount++;
+				if (batch.size() >= MAX_BATCH_BYTES) {
+					flush();
+				} else if (!flushScheduled) {
+					flushScheduled = true;
+					WebsocketUtils.getScheduler().schedule(
+							() -> Bootstrap.executorService.execute(this::flush),
+							MAX_BATCH_DELAY, TimeUnit.MILLISECONDS);
+				}
+			}
+		} else {
+			byte[] messageBytes = message.getBytes(UTF_8);
+			BinaryWriter writer;
+			if (channelId != -1) {
+				writer = new BinaryWriter(messageBytes.length + 16);
+				writer.writeVarInt(channelId);
+				writer.writeString(sessionId != null? sessionId: "");
+			} else {
+				byte[] sessionIdBytes = sessionId != null? sessionId.getBytes(UTF_8): new byte[0];
+				writer = new BinaryWriter(legacyPrefix.length + sessionIdBytes.length + messageBytes.length + 1);
+				writer.writeBytes(legacyPrefix, 0, legacyPrefix.length);
+				writer.writeBytes(sessionIdBytes, 0, sessionIdBytes.length);
+				writer.writeByte(':');
+			}
+			writer.writeBytes(messageBytes, 0, messageBytes.length);
+			send(new Message(MessageTypes.JOB_LOG, writer.toByteBuffer()));
+		}
+	}
+
+	/**
+	 * Send batched lines immediately. Called at step boundaries and job end
+	 */
+	public synchronized void flush() {
+		flushScheduled = false;
+		if (batch != null && batchCount != 0) {
+			BinaryWriter writer = new BinaryWriter(batch.size() + jobToken.length() + 10);
+			if (channelId != -1)
+				writer.writeVarInt(channelId);
+			else
+				writer.writeString(jobToken);
+			writer.writeVarInt(batchCount);
+			writer.writeBytes(batch.toByteBuffer());
+			batch = null;
+			batchCount = 0;
+			send(new Message(MessageTypes.JOB_LOG_BATCH, writer.toByteBuffer()));
+		}
+	}
+
+	/**
+	 * Flush batched lines and release channel of the job. Called at job end
+	 */
+	public synchronized void close() {
+		flush();
+		closed = true;
+		if (channelId != -1) {
+			// Spooled messages refer to the channel, which is then released after replay
+			Channels.unregister(jobToken, channelId);
+			if (spool.isEmpty())
+				Channels.release(channelId);
+		}
+	}
+
+	private synchronized void send(Message message) {
+		Session current = getSession();
+		if (current != null) {
+			current = BulkConnection.route(current);
+			announce(current);
+			if (replay(current) && message.sendBy(current))
+				return;
+		}
+		if (!Capabilities.isEnabled(session, Capabilities.SESSION_RESUME)) {
+			// Spooled messages would never be replayed
+			discarded++;
+			return;
+		}
+		long size = message.getData().remaining();
+		while (spooledBytes.get() + size > MAX_SPOOL_BYTES && !spool.isEmpty()) {
+			spooledBytes.addAndGet(-spool.removeFirst().getData().remaining());
+			discarded++;
+		}
+		if (spooledBytes.get() + size > MAX_SPOOL_BYTES) {
+			discarded++;
+		} else {
+			spool.addLast(message);
+			spooledBytes.addAndGet(size);
+			spooling.put(jobToken, this);
+		}
+	}
+
+	/**
+	 * @return session to send log messages to, or <tt>null</tt> if messages should be spooled
+	 * until agent reconnects
+	 */
+	@Nullable
+	private Session getSession() {
+		Session current = session;
+		if (current.isOpen() || !Capabilities.isEnabled(current, Capabilities.SESSION_RESUME))
+			return current;
+		Session newSession = AgentSocket.getCurrentSession();
+		// Current session may not be cleared yet right after old session is closed
+		if (newSession == null || newSession == current || !newSession.isOpen())
+			return null;
+		if (isResumable(newSession)) {
+			session = newSession;
+		} else {
+			discard();
+			session = newSession;
+		}
+		return newSession;
+	}
+
+	private boolean isResumable(Session newSession) {
+		return Capabilities.isEnabled(newSession, Capabilities.SESSION_RESUME)
+				&& Capabilities.isEnabled(newSession, Capabilities.JOB_LOG_BATCH) == batching
+				&& Capabilities.isEnabled(newSession, Capabilities.STREAM_CHANNELS) == (channelId != -1);
+	}
+
+	private void announce(Session current) {
+		if (channelId != -1) {
+			Channels channels = Channels.of(current);
+			if (channels != null)
+				channels.announce(channelId, jobToken);
+		}
+	}
+
+	/**
+	 * @return <tt>false</tt> if spooled messages can not be replayed as outbound queue of
+	 * the session is closed. Messages not replayed are kept in spool
+	 */
+	private boolean replay(Session current) {
+		if (!spool.isEmpty() || discarded != 0) {
+			Message message;
+			while ((message = spool.peekFirst()) != null) {
+				if (!message.sendBy(current))
+					return false;
+				spool.removeFirst();
+				spooledBytes.addAndGet(-message.getData().remaining());
+			}
+			spooling.remove(jobToken);
+			if (discarded != 0) {
+				long count = discarded;
+				discarded = 0;
+				warning(count + " log messages discarded while agent was disconnected from server");
+			}
+			if (closed) {
+				flush();
+				if (channelId != -1)
+					Channels.release(channelId);
+			}
+		}
+		return true;
+	}
+
+	private void discard() {
+		spooling.remove(jobToken);
+		Message message;
+		while ((message = spool.pollFirst()) != null)
+			spooledBytes.addAndGet(-message.getData().remaining());
+		discarded = 0;
+		if (channelId != -1)
+			Channels.unregister(jobToken, channelId);
+	}
+
+	/**
+	 * Replay spooled log messages of all jobs via current session. Called after agent
+	 * reconnects, and before sending job results
+	 */
+	public static void resumeAll() {
+		for (JobLogger logger: spooling.values()) {
+			synchronized (logger) {
+				Session current = logger.getSession();
+				if (current != null) {
+					current = BulkConnection.route(current);
+					logger.announce(current);
+					logger.replay(current);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of log messages discarded since last successful send
+	 */
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	public static long getSpooledBytes() {
+		return spooledBytes.get();
+	}
+
+}
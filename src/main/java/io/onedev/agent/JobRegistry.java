@@ -0,0 +1,124 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * In-flight and recently finished job executions keyed by job token and retry count. Server
+ * may deliver the same job request again after a reconnect or call timeout, in which case the
+ * request attaches to the running execution, or gets the result of the finished one, instead
+ * of running the job again. Only successful executions are remembered, so that a failed job
+ * runs again when server retries it
+ */
+public class JobRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(JobRegistry.class);
+
+	private final Map<String, CompletableFuture<Serializable>> running = new ConcurrentHashMap<>();
+
+	private final Map<String, FinishedJob> finished;
+
+	private final long retention;
+
+	public JobRegistry(int maxFinished, long retention) {
+		this.retention = retention;
+		finished = new LinkedHashMap<>() {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FinishedJob> eldest) {
+				return size() > maxFinished;
+			}
+
+		};
+	}
+
+	private static String getKey(String jobToken, int retried) {
+		return jobToken + ":" + retried;
+	}
+
+	/**
+	 * Run specified execution for specified job, unless the job is already running or
+	 * finished successfully recently. Exception thrown by the execution is passed to all
+	 * requests attached to it
+	 *
+	 * @param retried number of times the job has been retried by server. A retried job
+	 *                is a different execution even if job token is the same
+	 * @return result of the execution, with <tt>false</tt> or an exception meaning that the
+	 * job failed
+	 */
+	public Serializable execute(String jobToken, int retried, Callable<Serializable> execution)
+			throws InterruptedException {
+		String key = getKey(jobToken, retried);
+		CompletableFuture<Serializable> future = new CompletableFuture<>();
+		CompletableFuture<Serializable> existing;
+		synchronized (this) {
+			FinishedJob finishedJob = finished.get(key);
+			if (finishedJob != null) {
+				if (System.currentTimeMillis() - finishedJob.timestamp <= retention) {
+					logger.info("Job already finished, returning its result (job token: {}, retried: {})",
+							jobToken, retried);
+					return finishedJob.result;
+				} else {
+					finished.remove(key);
+				}
+			}
+			existing = running.putIfAbsent(key, future);
+		}
+
+		if (existing != null) {
+			logger.info("Job already running, attaching to it (job token: {}, retried: {})", jobToken, retried);
+			try {
+				return existing.get();
+			} catch (ExecutionException e) {
+				throw ExceptionUtils.unchecked((Exception) e.getCause());
+			}
+		}
+
+		try {
+			Serializable result = execution.call();
+			synchronized (this) {
+				if (!(result instanceof Exception) && !Boolean.FALSE.equals(result))
+					finished.put(key, new FinishedJob(result));
+				running.remove(key);
+			}
+			future.complete(result);
+			return result;
+		} catch (Exception e) {
+			synchronized (this) {
+				running.remove(key);
+			}
+			future.completeExceptionally(e);
+			throw ExceptionUtils.unchecked(e);
+		}
+	}
+
+	public boolean isRunning(String jobToken, int retried) {
+		return running.containsKey(getKey(jobToken, retried));
+	}
+
+	public synchronized int getFinishedCount() {
+		return finished.size();
+	}
+
+	private static class FinishedJob {
+
+		final Serializable result;
+
+		final long timestamp = System.currentTimeMillis();
+
+		FinishedJob(Serializable result) {
+			this.result = result;
+		}
+
+	}
+
+}
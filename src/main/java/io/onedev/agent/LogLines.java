@@ -0,0 +1,106 @@
+package io.onedev.agent;
+
+import com.google.common.io.ByteStreams;
+import io.onedev.agent.job.LogRequest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Lines of agent log and its rolled files, in the same order as {@link LogRequest#readLog(File)}.
+ * Lines are read from disk while being encoded instead of being loaded into memory first.
+ * Binary codec writes them as a plain list of strings, and Java serialization replaces this
+ * with a list of strings, so that server always receives a list
+ */
+public class LogLines implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final File logFile;
+
+	public LogLines(File logFile) {
+		this.logFile = logFile;
+	}
+
+	/**
+	 * Pass number of lines to specified count consumer, and then each line to specified line
+	 * consumer. Files are opened once and only content existing at that time is read, so that
+	 * line count matches lines passed even if log is appended or rolled meanwhile
+	 */
+	public void read(IntConsumer countConsumer, Consumer<String> lineConsumer) {
+		List<File> files = new ArrayList<>();
+		File logDir = logFile.getParentFile();
+		for (int i=logDir.list().length; i>=1; i--) {
+			File rollFile = new File(logDir, logFile.getName() + "." + i);
+			if (rollFile.exists())
+				files.add(rollFile);
+		}
+		files.add(logFile);
+
+		List<FileChannel> channels = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		try {
+			for (File file: files) {
+				try {
+					FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					channels.add(channel);
+					sizes.add(channel.size());
+				} catch (NoSuchFileException e) {
+					// Rolled away meanwhile
+				}
+			}
+			int count = 0;
+			for (int i=0; i<channels.size(); i++) {
+				BufferedReader reader = newReader(channels.get(i), sizes.get(i));
+				while (reader.readLine() != null)
+					count++;
+			}
+			countConsumer.accept(count);
+			for (int i=0; i<channels.size() && count != 0; i++) {
+				BufferedReader reader = newReader(channels.get(i), sizes.get(i));
+				String line;
+				while (count != 0 && (line = reader.readLine()) != null) {
+					lineConsumer.accept(line);
+					count--;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (FileChannel channel: channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Reader is not closed by caller as that closes the channel which is read twice
+	 */
+	private BufferedReader newReader(FileChannel channel, long size) throws IOException {
+		channel.position(0);
+		return new BufferedReader(new InputStreamReader(
+				ByteStreams.limit(Channels.newInputStream(channel), size), StandardCharsets.UTF_8));
+	}
+
+	private Object writeReplace() {
+		List<String> lines = new ArrayList<>();
+		read(count -> {}, lines::add);
+		return lines;
+	}
+
+}
@@ -1,53 +1,185 @@
 package io.onedev.agent;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.lang3.SerializationUtils;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 
 public class Message implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	/*
+	 * Payloads up to this size are copied after the header into a single frame. Larger
+	 * payloads are sent as a header fragment followed by the payload itself to avoid copying
+	 */
+	private static final int COALESCE_THRESHOLD = 64*1024;
+
+	/*
+	 * Set in header byte if payload is deflated by PayloadCompressor
+	 */
+	private static final int COMPRESSED_FLAG = 0x80;
+
+	private static final ByteBuffer[] HEADERS;
+
+	private static final ByteBuffer[] COMPRESSED_HEADERS;
+
+	static {
+		MessageTypes[] types = MessageTypes.values();
+		HEADERS = new ByteBuffer[types.length];
+		COMPRESSED_HEADERS = new ByteBuffer[types.length];
+		for (MessageTypes type: types) {
+			HEADERS[type.ordinal()] = ByteBuffer.wrap(new byte[] {(byte) type.ordinal()}).asReadOnlyBuffer();
+			COMPRESSED_HEADERS[type.ordinal()] = ByteBuffer.wrap(
+					new byte[] {(byte) (type.ordinal() | COMPRESSED_FLAG)}).asReadOnlyBuffer();
+		}
+	}
+
 	private final MessageTypes type;
-	
-	private final byte[] data;
-	
-	public Message(MessageTypes type, byte[] data) {
+
+	private final boolean compressed;
+
+	private transient ByteBuffer data;
+
+	private Message(MessageTypes type, ByteBuffer data, boolean compressed) {
 		this.type = type;
 		this.data = data;
+		this.compressed = compressed;
+	}
+
+	public Message(MessageTypes type, ByteBuffer data) {
+		this(type, data, false);
+	}
+
+	public Message(MessageTypes type, byte[] data) {
+		this(type, ByteBuffer.wrap(data));
 	}
 
 	public Message(MessageTypes type, String data) {
 		this(type, data.getBytes(StandardCharsets.UTF_8));
 	}
-	
+
 	public Message(MessageTypes type, Serializable data) {
 		this(type, SerializationUtils.serialize(data));
 	}
-	
-	public static Message of(byte[] bytes, int offset, int length) {
-    	MessageTypes type = MessageTypes.values()[bytes[offset]];
-		byte[] data = new byte[length-1];
-		System.arraycopy(bytes, offset+1, data, 0, length-1);
+
+	public Message(MessageTypes type, Serializable data, PayloadCodec codec) {
+		this(type, codec.encode(data));
+	}
+
+	/**
+	 * Parse message from received bytes. Data of returned message is a view of passed bytes,
+	 * so the bytes should not be modified afterwards
+	 *
+	 * @param maxLength max allowed length of message data after decompression
+	 */
+	public static Message of(byte[] bytes, int offset, int length, int maxLength) {
+		int header = bytes[offset];
+		MessageTypes type = MessageTypes.of((byte) (header & ~COMPRESSED_FLAG));
+		ByteBuffer data = ByteBuffer.wrap(bytes, offset+1, length-1).slice();
+		if ((header & COMPRESSED_FLAG) != 0)
+			data = PayloadCompressor.inflate(data, maxLength);
 		return new Message(type, data);
 	}
-	
+
+	/**
+	 * @return message of same type carrying specified compressed data
+	 */
+	Message compressed(ByteBuffer compressedData) {
+		return new Message(type, compressedData, true);
+	}
+
+	boolean isCompressed() {
+		return compressed;
+	}
+
 	public MessageTypes getType() {
 		return type;
 	}
 
-	public byte[] getData() {
-		return data;
+	/**
+	 * @return a view of message data. Reading it does not affect other callers
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	public String getDataAsString() {
+		if (data.hasArray())
+			return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+		else
+			return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+	}
+
+	public byte[] getDataAsBytes() {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
 	}
-	
-	public void sendBy(Session session) {
-		byte[] bytes = new byte[data.length+1];
-		bytes[0] = (byte) type.ordinal();
-		System.arraycopy(data, 0, bytes, 1, data.length);
-		session.getRemote().sendBytesByFuture(ByteBuffer.wrap(bytes));
+
+	/**
+	 * Send this message via outbound queue of specified session if there is one, or
+	 * directly otherwise
+	 *
+	 * @return <tt>false</tt> if message is dropped by outbound queue of the session, or
+	 * the session is closed
+	 */
+	public boolean sendBy(Session session) {
+		OutboundQueue queue = OutboundQueue.of(session);
+		if (queue != null) {
+			return queue.offer(this);
+		} else if (session.isOpen()) {
+			writeTo(session, false);
+			return true;
+		} else {
+			return false;
+		}
 	}
-	
+
+	void writeTo(Session session, boolean blocking) {
+		ByteBuffer header = (compressed? COMPRESSED_HEADERS: HEADERS)[type.ordinal()].duplicate();
+		RemoteEndpoint remote = session.getRemote();
+		/*
+		 * Partial and whole message sends can not interleave on the same endpoint, hence
+		 * serialize all sends of a session
+		 */
+		synchronized (session) {
+			try {
+				if (data.remaining() <= COALESCE_THRESHOLD) {
+					ByteBuffer bytes = ByteBuffer.allocate(1 + data.remaining());
+					bytes.put(header).put(data.duplicate()).flip();
+					if (blocking)
+						remote.sendBytes(bytes);
+					else
+						remote.sendBytesByFuture(bytes);
+				} else {
+					remote.sendPartialBytes(header, false);
+					remote.sendPartialBytes(data.duplicate(), true);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] bytes = getDataAsBytes();
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		data = ByteBuffer.wrap(bytes);
+	}
+
 }
@@ -5,6 +5,13 @@ public enum MessageTypes {
 	HEART_BEAT, AGENT_DATA, ERROR, UPDATE, RESTART, STOP, UPDATE_ATTRIBUTES, 
 	REQUEST, RESPONSE, JOB_LOG, CANCEL_JOB, REPORT_JOB_WORKSPACE, RESUME_JOB,
 	SHELL_INPUT, SHELL_OUTPUT, SHELL_ERROR, SHELL_OPEN, SHELL_EXIT,
-	SHELL_CLOSED, SHELL_RESIZE
+	SHELL_CLOSED, SHELL_RESIZE, JOB_LOG_BATCH, REQUEST_CHUNK, RESPONSE_CHUNK,
+	CHANNEL_OPEN, CHANNEL_CLOSE, AGENT_METRICS;
+
+	private static final MessageTypes[] VALUES = values();
+
+	public static MessageTypes of(byte ordinal) {
+		return VALUES[ordinal];
+	}
 	
 }
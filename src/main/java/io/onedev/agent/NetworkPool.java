@@ -0,0 +1,273 @@
+package io.onedev.agent;
+
+import io.onedev.commons.bootstrap.Bootstrap;
+import io.onedev.commons.utils.TaskLogger;
+import io.onedev.commons.utils.command.Commandline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Docker networks kept across jobs, so that jobs do not need to create and delete their
+ * own networks, which takes daemon wide locks. Networks are pooled per daemon and network
+ * options, and containers of a job are removed when its network is returned. Enabled if
+ * {@link Agent#networkPoolSize} is positive, which limits number of networks per pool.
+ * Jobs fall back to their own networks if pool is exhausted
+ */
+public class NetworkPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(NetworkPool.class);
+
+	private static final long REAP_INTERVAL = 60000;
+
+	private static final Map<String, NetworkPool> pools = new ConcurrentHashMap<>();
+
+	private static volatile ScheduledFuture<?> reaper;
+
+	private final String dockerPath;
+
+	private final String dockerHost;
+
+	private final String options;
+
+	private final String namePrefix;
+
+	private final Deque<String> idleNetworks = new ArrayDeque<>();
+
+	private final Map<String, Lease> leases = new HashMap<>();
+
+	private final Set<String> creatingNetworks = new HashSet<>();
+
+	private NetworkPool(String dockerPath, @Nullable String dockerHost, @Nullable String options,
+						String namePrefix) {
+		this.dockerPath = dockerPath;
+		this.dockerHost = dockerHost;
+		this.options = options;
+		this.namePrefix = namePrefix;
+	}
+
+	/**
+	 * Lease a network for specified job
+	 *
+	 * @return leased network, or <tt>null</tt> if pool is disabled or exhausted
+	 */
+	@Nullable
+	public static Lease lease(Commandline docker, @Nullable String options, String jobToken, TaskLogger jobLogger) {
+		if (Agent.networkPoolSize <= 0)
+			return null;
+		startReaper();
+		String key = DockerExecutorUtils.getDaemonKey(docker) + "/" + (options != null? options: "");
+		NetworkPool pool = pools.computeIfAbsent(key, it -> {
+			String dockerHost = docker.environments().get("DOCKER_HOST");
+			// Agents on same host may share a daemon
+			String suffix = Integer.toHexString((Agent.getWorkDir().getAbsolutePath() + it).hashCode());
+			return new NetworkPool(docker.executable(), dockerHost, options, "onedev-pool-" + suffix + "-");
+		});
+		return pool.lease(jobToken, jobLogger);
+	}
+
+	/**
+	 * Delete idle networks of all pools. Called on agent shutdown
+	 */
+	public static void deleteAll() {
+		for (NetworkPool pool: pools.values()) {
+			List<String> networks;
+			synchronized (pool) {
+				networks = new ArrayList<>(pool.idleNetworks);
+				pool.idleNetworks.clear();
+			}
+			for (String network: networks)
+				pool.delete(network);
+		}
+	}
+
+	private static synchronized void startReaper() {
+		if (reaper == null) {
+			reaper = WebsocketUtils.getScheduler().scheduleWithFixedDelay(
+					() -> Bootstrap.executorService.execute(() -> reap(AgentSocket::isJobRunning)),
+					REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Return networks leased by jobs no longer running, for instance if agent failed to
+	 * return them due to errors
+	 */
+	static void reap(Predicate<String> jobRunning) {
+		for (NetworkPool pool: pools.values()) {
+			List<Lease> leakedLeases = new ArrayList<>();
+			synchronized (pool) {
+				for (Lease lease: pool.leases.values()) {
+					if (!jobRunning.test(lease.jobToken)
+							&& System.currentTimeMillis() - lease.timestamp > REAP_INTERVAL) {
+						leakedLeases.add(lease);
+					}
+				}
+			}
+			for (Lease lease: leakedLeases) {
+				logger.warn("Reclaiming leaked network (network: {}, job token: {})", lease.network, lease.jobToken);
+				lease.release(null);
+			}
+		}
+	}
+
+	private Commandline newDocker() {
+		Commandline docker = new Commandline(dockerPath);
+		if (dockerHost != null)
+			docker.environments().put("DOCKER_HOST", dockerHost);
+		return docker;
+	}
+
+	@Nullable
+	private Lease lease(String jobToken, TaskLogger jobLogger) {
+		Lease lease;
+		boolean create = false;
+		synchronized (this) {
+			String network = idleNetworks.pollFirst();
+			if (network == null) {
+				network = nextName();
+				if (network == null)
+					return null;
+				create = true;
+			}
+			lease = new Lease(network, jobToken);
+			leases.put(network, lease);
+		}
+		if (create) {
+			try {
+				DockerExecutorUtils.createNetwork(newDocker(), lease.network, options, jobLogger);
+			} catch (Exception e) {
+				synchronized (this) {
+					leases.remove(lease.network);
+				}
+				throw e;
+			}
+		}
+		prepareSpare();
+		return lease;
+	}
+
+	/**
+	 * @return name of a new network, or <tt>null</tt> if pool is full
+	 */
+	@Nullable
+	private String nextName() {
+		if (getSize() >= Agent.networkPoolSize)
+			return null;
+		Set<String> used = new HashSet<>(idleNetworks);
+		used.addAll(leases.keySet());
+		used.addAll(creatingNetworks);
+		for (int i = 1; ; i++) {
+			String name = namePrefix + i;
+			if (!used.contains(name))
+				return name;
+		}
+	}
+
+	/**
+	 * Create a network in background for next job if no idle networks left
+	 */
+	private void prepareSpare() {
+		String network;
+		synchronized (this) {
+			if (!idleNetworks.isEmpty() || !creatingNetworks.isEmpty())
+				return;
+			network = nextName();
+			if (network == null)
+				return;
+			creatingNetworks.add(network);
+		}
+		Bootstrap.executorService.execute(() -> {
+			boolean created = false;
+			try {
+				DockerExecutorUtils.createNetwork(newDocker(), network, options, new LoggerTaskLogger());
+				created = true;
+			} catch (Exception e) {
+				logger.error("Error creating pooled network '" + network + "'", e);
+			} finally {
+				synchronized (this) {
+					creatingNetworks.remove(network);
+					if (created)
+						idleNetworks.addLast(network);
+				}
+			}
+		});
+	}
+
+	private synchronized int getSize() {
+		return idleNetworks.size() + leases.size() + creatingNetworks.size();
+	}
+
+	private void delete(String network) {
+		try {
+			DockerExecutorUtils.deleteNetwork(newDocker(), network, new LoggerTaskLogger());
+		} catch (Exception e) {
+			logger.error("Error deleting pooled network '" + network + "'", e);
+		}
+	}
+
+	public class Lease {
+
+		private final String network;
+
+		private final String jobToken;
+
+		private final long timestamp = System.currentTimeMillis();
+
+		private boolean released;
+
+		private Lease(String network, String jobToken) {
+			this.network = network;
+			this.jobToken = jobToken;
+		}
+
+		public String getNetwork() {
+			return network;
+		}
+
+		/**
+		 * Remove containers of the job and return the network to pool
+		 */
+		public void release(@Nullable TaskLogger jobLogger) {
+			synchronized (NetworkPool.this) {
+				// Reaper may release a lease at the same time as its job
+				if (released || leases.get(network) != this)
+					return;
+				released = true;
+			}
+			boolean cleared = false;
+			try {
+				DockerExecutorUtils.clearNetwork(newDocker(), network,
+						jobLogger != null? jobLogger: new LoggerTaskLogger());
+				cleared = true;
+			} finally {
+				boolean reusable;
+				synchronized (NetworkPool.this) {
+					leases.remove(network);
+					reusable = cleared && getSize() < Agent.networkPoolSize;
+					if (reusable)
+						idleNetworks.addFirst(network);
+				}
+				if (!reusable)
+					delete(network);
+			}
+		}
+
+	}
+
+	private static class LoggerTaskLogger extends TaskLogger {
+
+		@Override
+		public void log(String message, @Nullable String sessionId) {
+			logger.info(message);
+		}
+
+	}
+
+}
@@ -0,0 +1,441 @@
+package io.onedev.agent;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound messages of a websocket session, written by a single writer thread in priority
+ * order. Queued bytes of interactive and bulk messages are bounded, and producers of these
+ * messages block when the bound is reached, which in turn holds back the processes whose
+ * output is being forwarded
+ */
+public class OutboundQueue implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+	private static final Map<Session, OutboundQueue> queues = new ConcurrentHashMap<>();
+
+	public enum Priority {
+
+		CONTROL(0), RESPONSE(16*1024*1024), INTERACTIVE(2*1024*1024), BULK(8*1024*1024);
+
+		private final long budget;
+
+		Priority(long budget) {
+			this.budget = budget;
+		}
+
+		/**
+		 * @return max bytes allowed to be queued for this priority, <tt>0</tt> for unbounded
+		 */
+		public long getBudget() {
+			return budget;
+		}
+
+	}
+
+	private final Session session;
+
+	private final PayloadCompressor compressor;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition spaceAvailable = lock.newCondition();
+
+	private final Condition progress = lock.newCondition();
+
+	private final ArrayDeque<Entry>[] entries;
+
+	private final long[] queuedBytes;
+
+	private long nextSeq;
+
+	private Entry writing;
+
+	private boolean closed;
+
+	private long stalls;
+
+	private long stallNanos;
+
+	private long dropped;
+
+	private long failed;
+
+	private long written;
+
+	private long maxQueuedBytes;
+
+	@SuppressWarnings("unchecked")
+	private OutboundQueue(Session session) {
+		this.session = session;
+		if (Capabilities.isEnabled(session, Capabilities.COMPRESSION))
+			compressor = new PayloadCompressor(Agent.compressThreshold);
+		else
+			compressor = new PayloadCompressor(0);
+		entries = new ArrayDeque[Priority.values().length];
+		for (int i=0; i<entries.length; i++)
+			entries[i] = new ArrayDeque<>();
+		queuedBytes = new long[entries.length];
+	}
+
+	public static OutboundQueue open(Session session) {
+		OutboundQueue queue = new OutboundQueue(session);
+		queues.put(session, queue);
+		Thread thread = new Thread(queue, "agent-outbound-" + Integer.toHexString(System.identityHashCode(session)));
+		thread.setDaemon(true);
+		thread.start();
+		return queue;
+	}
+
+	@Nullable
+	public static OutboundQueue of(Session session) {
+		return queues.get(session);
+	}
+
+	public static void close(Session session) {
+		OutboundQueue queue = queues.remove(session);
+		if (queue != null) {
+			queue.close();
+			logger.debug("Outbound queue closed ({})", queue);
+		}
+	}
+
+	/**
+	 * Close queue of specified session like {@link #close(Session)}, but return messages not
+	 * written yet instead of dropping them, so that they can be sent over another session
+	 *
+	 * @return messages not written yet, in the order they were offered
+	 */
+	public static List<Message> drain(Session session) {
+		OutboundQueue queue = queues.remove(session);
+		if (queue != null) {
+			List<Message> pending = queue.drain();
+			logger.debug("Outbound queue drained ({}, drained messages: {})", queue, pending.size());
+			return pending;
+		} else {
+			return new ArrayList<>();
+		}
+	}
+
+	public static Priority getPriority(MessageTypes type) {
+		switch (type) {
+			case REQUEST:
+			case RESPONSE:
+			case REQUEST_CHUNK:
+			case RESPONSE_CHUNK:
+				return Priority.RESPONSE;
+			case SHELL_OUTPUT:
+			case SHELL_ERROR:
+			case SHELL_CLOSED:
+				return Priority.INTERACTIVE;
+			case JOB_LOG:
+			case JOB_LOG_BATCH:
+			case CHANNEL_CLOSE:
+				return Priority.BULK;
+			default:
+				return Priority.CONTROL;
+		}
+	}
+
+	/**
+	 * @return <tt>true</tt> if message is queued for writing, or <tt>false</tt> if it is dropped
+	 * as queue is closed or caller is interrupted while waiting for queue space
+	 */
+	public boolean offer(Message message) {
+		Priority priority = getPriority(message.getType());
+		long size = message.getData().remaining() + 1;
+		lock.lock();
+		try {
+			int index = priority.ordinal();
+			long budget = priority.getBudget();
+			if (!closed && budget != 0 && queuedBytes[index] != 0 && queuedBytes[index] + size > budget) {
+				stalls++;
+				long time = System.nanoTime();
+				try {
+					while (!closed && queuedBytes[index] != 0 && queuedBytes[index] + size > budget)
+						spaceAvailable.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped++;
+					return false;
+				} finally {
+					stallNanos += System.nanoTime() - time;
+				}
+			}
+			if (closed) {
+				dropped++;
+				return false;
+			} else {
+				entries[index].addLast(new Entry(message, nextSeq++, size));
+				queuedBytes[index] += size;
+				maxQueuedBytes = Math.max(maxQueuedBytes, getQueuedBytes());
+				notEmpty.signal();
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until all messages offered before calling this method are written, or queue
+	 * is closed
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			long seq = nextSeq;
+			while (!closed && hasPendingBefore(seq))
+				progress.await();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean hasPendingBefore(long seq) {
+		if (writing != null && writing.seq < seq)
+			return true;
+		for (ArrayDeque<Entry> each: entries) {
+			Entry head = each.peekFirst();
+			if (head != null && head.seq < seq)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Entry entry = null;
+			lock.lock();
+			try {
+				while (!closed && (entry = poll()) == null)
+					notEmpty.await(Agent.SOCKET_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (entry == null)
+					break;
+				writing = entry;
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				lock.unlock();
+			}
+
+			boolean success = false;
+			try {
+				Message message = entry.message;
+				ByteBuffer compressedData = compressor.compress(message.getData());
+				if (compressedData != null)
+					message = message.compressed(compressedData);
+				long time = System.nanoTime();
+				message.writeTo(session, true);
+				compressor.recordWrite(message.getData().remaining() + 1, System.nanoTime() - time);
+				success = true;
+			} catch (Exception e) {
+				if (session.isOpen())
+					logger.error("Error sending websocket message", e);
+			}
+
+			lock.lock();
+			try {
+				writing = null;
+				if (success)
+					written++;
+				else if (session.isOpen())
+					failed++;
+				else
+					dropped++;
+				if (!closed)
+					queuedBytes[entry.priority()] -= entry.size;
+				spaceAvailable.signalAll();
+				progress.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Nullable
+	private Entry poll() {
+		for (ArrayDeque<Entry> each: entries) {
+			Entry entry = each.pollFirst();
+			if (entry != null)
+				return entry;
+		}
+		return null;
+	}
+
+	private void close() {
+		lock.lock();
+		try {
+			dropped += drain().size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<Message> drain() {
+		lock.lock();
+		try {
+			closed = true;
+			List<Entry> pending = new ArrayList<>();
+			for (int i=0; i<entries.length; i++) {
+				pending.addAll(entries[i]);
+				entries[i].clear();
+				queuedBytes[i] = 0;
+			}
+			notEmpty.signalAll();
+			spaceAvailable.signalAll();
+			progress.signalAll();
+			pending.sort(Comparator.comparingLong(entry -> entry.seq));
+			List<Message> messages = new ArrayList<>();
+			for (Entry entry: pending)
+				messages.add(entry.message);
+			return messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueuedMessages() {
+		lock.lock();
+		try {
+			int count = 0;
+			for (ArrayDeque<Entry> each: entries)
+				count += each.size();
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			long bytes = 0;
+			for (long each: queuedBytes)
+				bytes += each;
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxQueuedBytes() {
+		lock.lock();
+		try {
+			return maxQueuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of times a producer had to wait for queue space
+	 */
+	public long getStalls() {
+		lock.lock();
+		try {
+			return stalls;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getStallMillis() {
+		lock.lock();
+		try {
+			return stallNanos / 1000000;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of messages discarded as session is closed before they can be written, or
+	 * as producer is interrupted while waiting for queue space
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of messages failed to be written while session is still open
+	 */
+	public long getFailed() {
+		lock.lock();
+		try {
+			return failed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return measured link throughput in bytes per second, or <tt>-1</tt> if not measured yet
+	 */
+	public long getLinkBytesPerSecond() {
+		return compressor.getBytesPerSecond();
+	}
+
+	/**
+	 * @return number of messages written successfully
+	 */
+	public long getWritten() {
+		lock.lock();
+		try {
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queued messages: %d, queued bytes: %d, max queued bytes: %d, written: %d, "
+						+ "stalls: %d, stall millis: %d, dropped: %d, failed: %d, link bytes per second: %d",
+				getQueuedMessages(), getQueuedBytes(), getMaxQueuedBytes(), getWritten(), getStalls(),
+				getStallMillis(), getDropped(), getFailed(), getLinkBytesPerSecond());
+	}
+
+	private static class Entry {
+
+		final Message message;
+
+		final long seq;
+
+		final long size;
+
+		Entry(Message message, long seq, long size) {
+			this.message = message;
+			this.seq = seq;
+			this.size = size;
+		}
+
+		int priority() {
+			return getPriority(message.getType()).ordinal();
+		}
+
+	}
+
+}
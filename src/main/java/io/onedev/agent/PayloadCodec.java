@@ -0,0 +1,34 @@
+package io.onedev.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+public interface PayloadCodec {
+
+	String getName();
+
+	byte[] encode(Serializable payload);
+
+	/**
+	 * Encode specified payload into specified stream. Codecs able to produce output
+	 * incrementally should override this to avoid materializing the whole encoded payload
+	 */
+	default void encode(Serializable payload, OutputStream output) {
+		try {
+			output.write(encode(payload));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Check whether specified data is encoded by this codec, without changing its position
+	 */
+	boolean accepts(ByteBuffer data);
+
+	Serializable decode(ByteBuffer data);
+
+}
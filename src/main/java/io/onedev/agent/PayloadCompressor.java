@@ -0,0 +1,149 @@
+package io.onedev.agent;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large outbound payloads. Compression level adapts to measured link throughput:
+ * the slower the link, the more CPU is worth spending to save bytes on the wire
+ */
+public class PayloadCompressor {
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private static final int MIN_SAMPLE_BYTES = 16*1024;
+
+	private static final double SMOOTHING = 0.2;
+
+	private final int threshold;
+
+	private volatile double bytesPerSecond = -1;
+
+	public PayloadCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return compressed payload, or <tt>null</tt> if payload is below threshold or does not
+	 * compress well
+	 */
+	@Nullable
+	public ByteBuffer compress(ByteBuffer payload) {
+		if (threshold <= 0 || payload.remaining() < threshold)
+			return null;
+		ByteBuffer compressed = deflate(payload, getLevel());
+		if (compressed.remaining() < payload.remaining() * 9L / 10)
+			return compressed;
+		else
+			return null;
+	}
+
+	/**
+	 * Record time spent writing specified number of bytes to the link
+	 */
+	public void recordWrite(long bytes, long nanos) {
+		if (bytes >= MIN_SAMPLE_BYTES && nanos > 0) {
+			double sample = bytes * 1000000000.0 / nanos;
+			double current = bytesPerSecond;
+			if (current < 0)
+				bytesPerSecond = sample;
+			else
+				bytesPerSecond = current + SMOOTHING * (sample - current);
+		}
+	}
+
+	/**
+	 * @return measured link throughput in bytes per second, or <tt>-1</tt> if not measured yet
+	 */
+	public long getBytesPerSecond() {
+		return (long) bytesPerSecond;
+	}
+
+	public int getLevel() {
+		double current = bytesPerSecond;
+		if (current < 0)
+			return 6;
+		else if (current > 40*1024*1024)
+			return 1;
+		else if (current > 10*1024*1024)
+			return 3;
+		else if (current > 2*1024*1024)
+			return 6;
+		else
+			return 9;
+	}
+
+	public static ByteBuffer deflate(ByteBuffer payload, int level) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		ByteBuffer input = payload.duplicate();
+		byte[] inputBytes;
+		int inputOffset;
+		if (input.hasArray()) {
+			inputBytes = input.array();
+			inputOffset = input.arrayOffset() + input.position();
+		} else {
+			inputBytes = new byte[input.remaining()];
+			input.get(inputBytes);
+			inputOffset = 0;
+		}
+		deflater.setInput(inputBytes, inputOffset, payload.remaining());
+		deflater.finish();
+
+		BinaryWriter writer = new BinaryWriter(payload.remaining() / 4 + 64);
+		writer.writeVarInt(payload.remaining());
+		byte[] buffer = new byte[64*1024];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			writer.writeBytes(buffer, 0, count);
+		}
+		return writer.toByteBuffer();
+	}
+
+	/**
+	 * @param maxLength max allowed length of inflated payload. Length declared by compressed
+	 *                  payload is checked against it before allocating any buffer
+	 */
+	public static ByteBuffer inflate(ByteBuffer compressed, int maxLength) {
+		BinaryReader reader = new BinaryReader(compressed.duplicate());
+		int length = reader.readVarInt();
+		if (length < 0 || length > maxLength)
+			throw new IllegalStateException("Invalid inflated length of compressed payload (length: " + length + ", max length: " + maxLength + ")");
+		ByteBuffer input = reader.readRemaining();
+		byte[] inputBytes;
+		int inputOffset;
+		if (input.hasArray()) {
+			inputBytes = input.array();
+			inputOffset = input.arrayOffset() + input.position();
+		} else {
+			inputBytes = new byte[input.remaining()];
+			input.duplicate().get(inputBytes);
+			inputOffset = 0;
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(inputBytes, inputOffset, input.remaining());
+		byte[] output = new byte[length];
+		try {
+			int offset = 0;
+			while (offset < length) {
+				int count = inflater.inflate(output, offset, length - offset);
+				if (count == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				offset += count;
+			}
+			if (offset != length)
+				throw new IllegalStateException("Truncated compressed payload");
+		} catch (DataFormatException e) {
+			throw new RuntimeException(e);
+		}
+		return ByteBuffer.wrap(output);
+	}
+
+}
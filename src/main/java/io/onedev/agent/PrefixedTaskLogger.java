@@ -0,0 +1,28 @@
+package io.onedev.agent;
+
+import io.onedev.commons.utils.TaskLogger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes messages of a task running concurrently with others to the underlying logger
+ * right away, with specified prefix identifying the task, for instance <tt>[postgres] </tt>
+ * for a job service
+ */
+public class PrefixedTaskLogger extends TaskLogger {
+
+	private final TaskLogger delegate;
+
+	private final String prefix;
+
+	public PrefixedTaskLogger(TaskLogger delegate, String prefix) {
+		this.delegate = delegate;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void log(String message, @Nullable String sessionId) {
+		delegate.log(prefix + message, sessionId);
+	}
+
+}
@@ -0,0 +1,165 @@
+package io.onedev.agent;
+
+import io.onedev.commons.bootstrap.Bootstrap;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Forwards shell stdout or stderr to server. Output arriving while previous output was
+ * sent within {@link #COALESCE_WINDOW} is accumulated in a buffer reused for the whole
+ * shell session, so that a burst of small reads goes out as a few large messages, while a
+ * single echoed keystroke is still sent right away.
+ * <p>
+ * If server accepts {@link Capabilities#SHELL_BYTES}, bytes are forwarded as is, and server
+ * is responsible to decode them. Otherwise bytes are decoded with a streaming decoder
+ * keeping incomplete multi-byte characters until the rest arrives
+ */
+public class ShellOutputStream extends OutputStream {
+
+	private static final long COALESCE_WINDOW = 5;
+
+	private static final int BUFFER_SIZE = 16*1024;
+
+	private final Session session;
+
+	private final String sessionId;
+
+	private final MessageTypes type;
+
+	private final boolean raw;
+
+	private final CharsetDecoder decoder;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private CharBuffer chars;
+
+	private int count;
+
+	private long lastSent;
+
+	private boolean flushScheduled;
+
+	private long messages;
+
+	public ShellOutputStream(Session session, String sessionId, MessageTypes type) {
+		this.session = session;
+		this.sessionId = sessionId;
+		this.type = type;
+		raw = Channels.of(session) != null && Capabilities.isEnabled(session, Capabilities.SHELL_BYTES);
+		if (raw) {
+			decoder = null;
+		} else {
+			decoder = UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		lastSent = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(COALESCE_WINDOW);
+	}
+
+	@Override
+	public void write(int b) {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		while (len > 0) {
+			int size = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, size);
+			count += size;
+			off += size;
+			len -= size;
+			if (count == buffer.length)
+				send(false);
+		}
+		if (count != 0 && !flushScheduled) {
+			long elapsed = System.nanoTime() - lastSent;
+			long window = TimeUnit.MILLISECONDS.toNanos(COALESCE_WINDOW);
+			if (elapsed >= window) {
+				send(false);
+			} else {
+				flushScheduled = true;
+				WebsocketUtils.getScheduler().schedule(
+						() -> Bootstrap.executorService.execute(this::sendBuffered),
+						window - elapsed, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Buffered output is sent by coalescing timer. Do not send on explicit flush, as stream
+	 * pumpers may flush after every read
+	 */
+	@Override
+	public void flush() {
+	}
+
+	private synchronized void sendBuffered() {
+		flushScheduled = false;
+		if (count != 0)
+			send(false);
+	}
+
+	/**
+	 * Send all buffered output, including incomplete characters if any
+	 */
+	@Override
+	public synchronized void close() {
+		flushScheduled = false;
+		send(true);
+	}
+
+	public synchronized long getMessages() {
+		return messages;
+	}
+
+	private void send(boolean endOfInput) {
+		if (raw) {
+			if (count != 0) {
+				Channels channels = Channels.of(session);
+				if (channels != null) {
+					BinaryWriter writer = new BinaryWriter(count + 5);
+					writer.writeVarInt(channels.announce(sessionId));
+					writer.writeBytes(buffer, 0, count);
+					new Message(type, writer.toByteBuffer()).sendBy(session);
+					messages++;
+				}
+			}
+			count = 0;
+		} else {
+			if (chars == null)
+				chars = CharBuffer.allocate(BUFFER_SIZE);
+			ByteBuffer input = ByteBuffer.wrap(buffer, 0, count);
+			decoder.decode(input, chars, endOfInput);
+			if (endOfInput) {
+				decoder.flush(chars);
+				decoder.reset();
+			}
+			chars.flip();
+			if (chars.hasRemaining()) {
+				String text = chars.toString();
+				if (type == MessageTypes.SHELL_OUTPUT)
+					AgentSocket.sendOutput(sessionId, session, text);
+				else
+					AgentSocket.sendError(sessionId, session, text);
+				messages++;
+			}
+			chars.clear();
+			// Keep bytes of incomplete character at buffer start
+			int remaining = input.remaining();
+			System.arraycopy(buffer, input.position(), buffer, 0, remaining);
+			count = remaining;
+		}
+		lastSent = System.nanoTime();
+	}
+
+}
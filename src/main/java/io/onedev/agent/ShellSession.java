@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
@@ -34,9 +35,15 @@ public class ShellSession {
 	
 	private final Future<?> execution;
 	
+	private final ShellOutputStream stdout;
+	
+	private final ShellOutputStream stderr;
+	
 	public ShellSession(String sessionId, Session agentSession, Commandline cmdline) {
 		this.sessionId = sessionId;
 		this.agentSession = agentSession;
+		stdout = new ShellOutputStream(agentSession, sessionId, MessageTypes.SHELL_OUTPUT);
+		stderr = new ShellOutputStream(agentSession, sessionId, MessageTypes.SHELL_ERROR);
 		
         ptyMode = new PtyMode();
         cmdline.ptyMode(ptyMode);
@@ -50,37 +57,13 @@ public class ShellSession {
 					var stdoutHolder = new AtomicReference<InputStream>(null);
                     Function<InputStream, Future<?>> stdoutHandler = is -> {
 						stdoutHolder.set(is);
-						return StreamPumper.pump(is, new OutputStream() {
-
-							@Override
-							public void write(byte[] b, int off, int len) {
-								sendOutput(new String(b, off, len, StandardCharsets.UTF_8));
-							}
-
-							@Override
-							public void write(int b) {
-								throw new UnsupportedOperationException();
-							}
-
-						});
+						return StreamPumper.pump(is, stdout);
 					};
 
 					var stderrHolder = new AtomicReference<InputStream>(null);
 					Function<InputStream, Future<?>> stderrHandler = is -> {
 						stderrHolder.set(is);
-						return StreamPumper.pump(is, new OutputStream() {
-
-							@Override
-							public void write(byte[] b, int off, int len) {
-								sendError(new String(b, off, len, StandardCharsets.UTF_8));
-							}
-
-							@Override
-							public void write(int b) {
-								throw new UnsupportedOperationException();
-							}
-
-						});
+						return StreamPumper.pump(is, stderr);
 					};
                     cmdline.processKiller(new ProcessTreeKiller() {
 
@@ -97,6 +80,8 @@ public class ShellSession {
 						shellStdin = os;
 						return new ImmediateFuture<Void>(null);
 					});
+                    stdout.close();
+                    stderr.close();
                     if (result.getReturnCode() != 0)
                     	sendError("Shell exited");
                     else
@@ -116,6 +101,9 @@ public class ShellSession {
 	            } finally {
 					closeQuietly(shellStdin);
 					shellStdin = null;
+					stdout.close();
+					stderr.close();
+					Channels.release(sessionId);
 				}
 			}
         	
@@ -132,10 +120,21 @@ public class ShellSession {
 	}
 
 	public void sendInput(String input) {
+		sendInput(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public void sendInput(ByteBuffer input) {
 		var shellStdinCopy = shellStdin;
 		if (shellStdinCopy != null) {
 			try {
-				shellStdinCopy.write(input.getBytes(StandardCharsets.UTF_8));
+				if (input.hasArray()) {
+					shellStdinCopy.write(input.array(), input.arrayOffset() + input.position(), input.remaining());
+				} else {
+					byte[] bytes = new byte[input.remaining()];
+					input.duplicate().get(bytes);
+					shellStdinCopy.write(bytes);
+				}
+				shellStdinCopy.flush();
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -1,64 +1,158 @@
 package io.onedev.agent;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
+
+import javax.annotation.Nullable;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.eclipse.jetty.websocket.api.Session;
 
 import io.onedev.commons.utils.ExceptionUtils;
 
 public class WebsocketUtils {
 
-	private static final Map<String, Optional<Serializable>> responses = new HashMap<>();
-	
-	@SuppressWarnings("unchecked")
-	public static <T extends Serializable, R extends Serializable> R call(Session session, T request, long timeout) 
+	private static final long SWEEP_INTERVAL = 10000;
+
+	private static final Map<String, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "websocket-call-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		scheduler.scheduleWithFixedDelay(WebsocketUtils::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public static ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	public static <T extends Serializable, R extends Serializable> R call(Session session, T request, long timeout)
 			throws InterruptedException, TimeoutException {
 		String uuid = UUID.randomUUID().toString();
-		CallData callData = new CallData(uuid, request);
-		new Message(MessageTypes.REQUEST, SerializationUtils.serialize(callData)).sendBy(session);
-		
-		synchronized (responses) {
-			responses.put(uuid, null);
+		CompletableFuture<Serializable> future = register(uuid, session, timeout);
+		try {
+			send(session, uuid, request, future);
+			return getPayload(future);
+		} finally {
+			future.cancel(false);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T extends Serializable, R extends Serializable> CompletableFuture<R> callAsync(
+			Session session, T request, long timeout) {
+		String uuid = UUID.randomUUID().toString();
+		CompletableFuture<Serializable> future = register(uuid, session, timeout);
+		send(session, uuid, request, future);
+		return (CompletableFuture<R>) future;
+	}
+
+	private static void send(Session session, String uuid, Serializable request, CompletableFuture<Serializable> future) {
+		try {
+			sendCallData(session, MessageTypes.REQUEST, new CallData(uuid, request));
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Send call data as message of specified type. If server accepts chunked calls, call data
+	 * is encoded into a sequence of bounded chunk messages as it is being serialized, instead
+	 * of into a single message holding the whole encoded payload
+	 */
+	public static void sendCallData(Session session, MessageTypes type, CallData callData) {
+		PayloadCodec codec = CodecUtils.getCodec(session);
+		if (Capabilities.isEnabled(session, Capabilities.CHUNKED_RPC)) {
+			MessageTypes chunkType = type == MessageTypes.REQUEST? MessageTypes.REQUEST_CHUNK: MessageTypes.RESPONSE_CHUNK;
+			ChunkedOutputStream output = new ChunkedOutputStream(session, type, chunkType,
+					callData.getUuid(), Agent.MAX_CHUNK_BYTES);
 			try {
-				long time = System.currentTimeMillis();
-				while (true) {
-					if (timeout != 0) {
-						long ellapsedTime = System.currentTimeMillis() - time;
-						if (timeout > ellapsedTime)
-							responses.wait(timeout-ellapsedTime);
-						else
-							throw new TimeoutException();
-					} else {
-						responses.wait();
-					}
-					Optional<Serializable> response = responses.get(uuid);
-					if (response != null) {
-						Serializable payload = response.orElse(null);
-						if (payload instanceof Exception)
-							throw ExceptionUtils.unchecked((Exception) payload);
-						else 
-							return (R) payload;
-					}
-				}
-			} finally {
-				responses.remove(uuid);
+				codec.encode(callData, output);
+			} catch (RuntimeException | Error e) {
+				// Do not let peer take partially encoded data as a whole
+				output.abort();
+				throw e;
 			}
+			output.close();
+		} else {
+			new Message(type, callData, codec).sendBy(session);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <R extends Serializable> R getPayload(CompletableFuture<Serializable> future)
+			throws InterruptedException, TimeoutException {
+		try {
+			return (R) future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TimeoutException)
+				throw (TimeoutException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw ExceptionUtils.unchecked((Exception) cause);
+		}
+	}
+
+	static CompletableFuture<Serializable> register(String uuid, @Nullable Session session, long timeout) {
+		CompletableFuture<Serializable> future = new CompletableFuture<>();
+		pendingCalls.put(uuid, new PendingCall(session, future));
+		future.whenComplete((result, throwable) -> pendingCalls.remove(uuid));
+		if (timeout != 0) {
+			ScheduledFuture<?> timeoutTask = scheduler.schedule(
+					() -> future.completeExceptionally(new TimeoutException()),
+					timeout, TimeUnit.MILLISECONDS);
+			future.whenComplete((result, throwable) -> timeoutTask.cancel(false));
 		}
+		return future;
+	}
+
+	static int getPendingCount() {
+		return pendingCalls.size();
 	}
 
 	public static void onResponse(CallData callData) {
-		synchronized (responses) {
-			if (responses.containsKey(callData.getUuid())) {
-				responses.put(callData.getUuid(), Optional.ofNullable(callData.getPayload()));
-				responses.notifyAll();
-			}
+		PendingCall pendingCall = pendingCalls.get(callData.getUuid());
+		if (pendingCall != null) {
+			Serializable payload = callData.getPayload();
+			if (payload instanceof Exception)
+				pendingCall.future.completeExceptionally((Exception) payload);
+			else
+				pendingCall.future.complete(payload);
+		}
+	}
+
+	public static void onClose(Session session) {
+		for (PendingCall pendingCall: pendingCalls.values()) {
+			if (pendingCall.session == session)
+				pendingCall.future.completeExceptionally(new IllegalStateException("Websocket session closed"));
 		}
 	}
-	
+
+	private static void sweep() {
+		for (PendingCall pendingCall: pendingCalls.values()) {
+			if (pendingCall.session != null && !pendingCall.session.isOpen())
+				pendingCall.future.completeExceptionally(new IllegalStateException("Websocket session closed"));
+		}
+	}
+
+	private static class PendingCall {
+
+		final Session session;
+
+		final CompletableFuture<Serializable> future;
+
+		PendingCall(@Nullable Session session, CompletableFuture<Serializable> future) {
+			this.session = session;
+			this.future = future;
+		}
+
+	}
+
 }
@@ -18,6 +18,14 @@ public class ImageMappingFacade implements Serializable {
 		this.to = to;
 	}
 
+	public String getFrom() {
+		return from;
+	}
+
+	public String getTo() {
+		return to;
+	}
+
 	@Nullable
 	public String map(String image) {
 		var matcher = Pattern.compile(from).matcher(image);
@@ -0,0 +1,349 @@
+package io.onedev.agent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.onedev.agent.job.DockerJobData;
+import io.onedev.agent.job.ImageMappingFacade;
+import io.onedev.agent.job.LogRequest;
+import io.onedev.agent.job.RegistryLoginFacade;
+import io.onedev.agent.job.TestDockerJobData;
+import io.onedev.commons.utils.ExplicitException;
+import io.onedev.commons.utils.FileUtils;
+import io.onedev.k8shelper.OsInfo;
+
+public class BinaryPayloadCodecTest {
+
+	/*
+	 * Action tree of a typical build: checkout, then groups of command steps with scripts
+	 * and environments
+	 */
+	private List<StepAction> newActions() {
+		List<StepAction> actions = new ArrayList<>();
+		actions.add(new StepAction("checkout", new CommandStep("alpine/git", null,
+				"git fetch --depth=1 origin main\ngit checkout FETCH_HEAD", new LinkedHashMap<>(), false),
+				StepCondition.ALWAYS));
+		for (int i=0; i<8; i++) {
+			List<StepAction> children = new ArrayList<>();
+			for (int j=0; j<6; j++) {
+				Map<String, String> envs = new LinkedHashMap<>();
+				envs.put("MAVEN_OPTS", "-Xmx2g -Dmaven.repo.local=/onedev-build/cache/m2");
+				envs.put("STEP_INDEX", String.valueOf(j));
+				StringBuilder commands = new StringBuilder();
+				for (int k=0; k<10; k++)
+					commands.append("mvn -B -pl module-").append(i).append("-").append(j).append(" verify -Dtest=Test").append(k).append("\n");
+				children.add(new StepAction("step " + i + "." + j, new CommandStep("maven:3.9-eclipse-temurin-17",
+						j % 2 == 0? "1000:1000": null, commands.toString(), envs, j == 0),
+						StepCondition.ALL_PREVIOUS_STEPS_WERE_SUCCESSFUL));
+			}
+			actions.add(new StepAction("group " + i, new CompositeStep(children), StepCondition.ALWAYS));
+		}
+		return actions;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private DockerJobData newDockerJobData() {
+		List<RegistryLoginFacade> registryLogins = new ArrayList<>();
+		List<ImageMappingFacade> imageMappings = new ArrayList<>();
+		for (int i=0; i<20; i++) {
+			registryLogins.add(new RegistryLoginFacade("https://registry" + i + ".example.com", "user" + i, "secret" + i));
+			imageMappings.add(new ImageMappingFacade("docker.io/library/(.*)" + i, "mirror.example.com/$1"));
+		}
+		List services = new ArrayList<>();
+		services.add(new CommandStep("postgres:16", null, "pg_isready", new LinkedHashMap<>(), false));
+		return new DockerJobData("a3f1c2d4-1111-2222-3333-444455556666", "docker", "onedev/server", 12L,
+				"refs/heads/main", "0123456789abcdef0123456789abcdef01234567", 1234L, (List) newActions(),
+				2, services, registryLogins, "https://onedev.example.com", imageMappings,
+				true, null, "onedev", "2", null, "--privileged", null, true);
+	}
+
+	private Serializable roundTrip(Serializable payload) {
+		byte[] encoded = BinaryPayloadCodec.INSTANCE.encode(payload);
+		assertTrue(BinaryPayloadCodec.INSTANCE.accepts(ByteBuffer.wrap(encoded)));
+		return CodecUtils.decode(encoded);
+	}
+
+	@Test
+	public void shouldRoundTripDockerJobData() {
+		DockerJobData jobData = newDockerJobData();
+		CallData callData = (CallData) roundTrip(new CallData("uuid", jobData));
+		assertEquals("uuid", callData.getUuid());
+		DockerJobData decoded = (DockerJobData) callData.getPayload();
+		assertEquals(jobData.getJobToken(), decoded.getJobToken());
+		assertEquals(jobData.getProjectId(), decoded.getProjectId());
+		assertEquals(jobData.getBuildNumber(), decoded.getBuildNumber());
+		assertEquals(jobData.getRetried(), decoded.getRetried());
+		assertEquals(20, decoded.getRegistryLogins().size());
+		assertEquals("secret7", decoded.getRegistryLogins().get(7).getPassword());
+		assertEquals("mirror.example.com/$1", decoded.getImageMappings().get(3).getTo());
+		assertEquals(jobData.getDockerOptions(), decoded.getDockerOptions());
+		assertNull(decoded.getDockerSock());
+		assertNull(decoded.getMemoryLimit());
+		assertTrue(decoded.isMountDockerSock());
+		assertTrue(decoded.isAlwaysPullImage());
+		assertEquals(9, decoded.getActions().size());
+		StepAction group = (StepAction) (Object) decoded.getActions().get(3);
+		assertEquals("group 2", group.name);
+		assertEquals(StepCondition.ALWAYS, group.condition);
+		StepAction step = ((CompositeStep) group.facade).actions.get(2);
+		assertEquals(StepCondition.ALL_PREVIOUS_STEPS_WERE_SUCCESSFUL, step.condition);
+		CommandStep command = (CommandStep) step.facade;
+		assertEquals("1000:1000", command.runAs);
+		assertEquals("2", command.envMap.get("STEP_INDEX"));
+		assertTrue(command.commands.startsWith("mvn -B -pl module-2-2 verify"));
+		assertEquals("postgres:16", ((CommandStep) (Object) decoded.getServices().get(0)).image);
+	}
+
+	@Test
+	public void shouldRoundTripOtherPayloads() {
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("os", "linux");
+		attributes.put("gpu", "true");
+		assertEquals(attributes, roundTrip((Serializable) attributes));
+
+		TestDockerJobData testJobData = (TestDockerJobData) roundTrip(new TestDockerJobData("docker", "token",
+				"ubuntu", "/var/run/docker.sock", new ArrayList<>(), "https://onedev.example.com", null));
+		assertEquals("ubuntu", testJobData.getDockerImage());
+		assertEquals("/var/run/docker.sock", testJobData.getDockerSock());
+
+		assertTrue(roundTrip(new LogRequest()) instanceof LogRequest);
+		assertEquals(true, roundTrip(true));
+		assertEquals(-5, roundTrip(-5));
+		assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+
+		// Written via Java serialization as there is no no-arg constructor
+		assertEquals("checkout", ((ImmutableStep) roundTrip(new ImmutableStep("checkout"))).name);
+
+		ExplicitException exception = (ExplicitException) roundTrip(new ExplicitException("failed"));
+		assertEquals("failed", exception.getMessage());
+
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("imageCacheHits", 3L);
+		AgentData agentData = (AgentData) roundTrip(new AgentData("token", new OsInfo("Linux", "6.1", "amd64"),
+				"agent", "127.0.0.1", 4, attributes, metrics));
+		assertEquals(attributes, agentData.getAttributes());
+		assertEquals(metrics, agentData.getMetrics());
+
+		// Agent data without metrics nested in another value
+		ArrayList<Serializable> list = new ArrayList<>();
+		list.add(new AgentData("token", new OsInfo("Linux", "6.1", "amd64"), "agent", "127.0.0.1", 4,
+				attributes, null));
+		list.add("next");
+		List<?> decodedList = (List<?>) roundTrip(list);
+		assertNull(((AgentData) decodedList.get(0)).getMetrics());
+		assertEquals("next", decodedList.get(1));
+	}
+
+	@Test
+	public void shouldDecodeJavaSerializedPayload() {
+		byte[] encoded = JavaPayloadCodec.INSTANCE.encode(new CallData("uuid", "hello"));
+		CallData callData = CodecUtils.decode(encoded);
+		assertEquals("hello", callData.getPayload());
+	}
+
+	@Test
+	public void shouldBeSmallerAndFasterThanJavaSerialization() {
+		CallData callData = new CallData("uuid", newDockerJobData());
+		int rounds = 2000;
+
+		long binaryNanos = 0;
+		long javaNanos = 0;
+		int binarySize = 0;
+		int javaSize = 0;
+		for (int i=0; i<rounds; i++) {
+			long time = System.nanoTime();
+			byte[] encoded = BinaryPayloadCodec.INSTANCE.encode(callData);
+			BinaryPayloadCodec.INSTANCE.decode(ByteBuffer.wrap(encoded));
+			binaryNanos += System.nanoTime() - time;
+			binarySize = encoded.length;
+
+			time = System.nanoTime();
+			encoded = JavaPayloadCodec.INSTANCE.encode(callData);
+			JavaPayloadCodec.INSTANCE.decode(ByteBuffer.wrap(encoded));
+			javaNanos += System.nanoTime() - time;
+			javaSize = encoded.length;
+		}
+		assertTrue(binarySize < javaSize);
+		assertTrue(binaryNanos < javaNanos);
+	}
+
+	@Test
+	public void shouldDecodeWhileChunksArrive() throws Exception {
+		CallData callData = new CallData("uuid", newDockerJobData());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryPayloadCodec.INSTANCE.encode(callData, output);
+		byte[] encoded = output.toByteArray();
+		assertArrayEquals(BinaryPayloadCodec.INSTANCE.encode(callData), encoded);
+
+		ChunkAssembler assembler = new ChunkAssembler(encoded.length);
+		int chunkSize = 1000;
+		InputStream input = assembler.append(newChunk(encoded, 0, chunkSize));
+		assertNotNull(input);
+		CompletableFuture<CallData> decoded = CompletableFuture.supplyAsync(() -> CodecUtils.decode(input));
+		for (int offset = chunkSize; offset < encoded.length; offset += chunkSize) {
+			// Decoder consumes chunks received so far instead of waiting for the last one
+			while (input.available() != 0)
+				Thread.sleep(1);
+			assertFalse(decoded.isDone());
+			assertNull(assembler.append(newChunk(encoded, offset, chunkSize)));
+		}
+		CallData decodedCallData = decoded.get(10, TimeUnit.SECONDS);
+		assertEquals(0, assembler.getPendingCount());
+		assertEquals(callData.getUuid(), decodedCallData.getUuid());
+		assertEquals(newActions().size(), ((DockerJobData) decodedCallData.getPayload()).getActions().size());
+	}
+
+	private ByteBuffer newChunk(byte[] encoded, int offset, int chunkSize) {
+		int length = Math.min(chunkSize, encoded.length - offset);
+		BinaryWriter writer = new BinaryWriter();
+		writer.writeString("uuid");
+		writer.writeByte(offset + length == encoded.length? 1: 0);
+		writer.writeBytes(encoded, offset, length);
+		return writer.toByteBuffer();
+	}
+
+	@Test
+	public void shouldAbortChunkedCallExceedingLimit() throws Exception {
+		ChunkAssembler assembler = new ChunkAssembler(1500);
+		byte[] encoded = new byte[2000];
+		InputStream input = assembler.append(newChunk(encoded, 0, 1000));
+		try {
+			assembler.append(newChunk(encoded, 1000, 1000));
+			fail();
+		} catch (ExplicitException e) {
+		}
+		assertEquals(0, assembler.getPendingCount());
+		try {
+			input.readAllBytes();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("exceeds 1500 bytes"));
+		}
+	}
+
+	@Test
+	public void shouldEncodeLogLinesAsList() throws Exception {
+		File logDir = Files.createTempDirectory("log-lines-test").toFile();
+		try {
+			File logFile = new File(logDir, "agent.log");
+			Files.write(new File(logDir, "agent.log.2").toPath(), "first\nsecond\n".getBytes(UTF_8));
+			Files.write(new File(logDir, "agent.log.1").toPath(), "third\n".getBytes(UTF_8));
+			Files.write(logFile.toPath(), "fourth\nfifth".getBytes(UTF_8));
+			List<String> lines = List.of("first", "second", "third", "fourth", "fifth");
+			assertEquals(LogRequest.readLog(logFile), lines);
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			BinaryPayloadCodec.INSTANCE.encode(new CallData("uuid", new LogLines(logFile)), output);
+			assertEquals(lines, ((CallData) CodecUtils.decode(output.toByteArray())).getPayload());
+
+			byte[] encoded = JavaPayloadCodec.INSTANCE.encode(new LogLines(logFile));
+			assertEquals(lines, CodecUtils.decode(encoded));
+		} finally {
+			FileUtils.deleteDir(logDir);
+		}
+	}
+
+	private enum StepCondition {ALWAYS, ALL_PREVIOUS_STEPS_WERE_SUCCESSFUL}
+
+	/*
+	 * Stand-ins shaped like k8s helper actions and facades, which are encoded the same way.
+	 * No-arg constructors are required for them to be encoded field by field
+	 */
+	private static class StepAction implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+
+		private Serializable facade;
+
+		private StepCondition condition;
+
+		StepAction() {
+		}
+
+		StepAction(String name, Serializable facade, StepCondition condition) {
+			this.name = name;
+			this.facade = facade;
+			this.condition = condition;
+		}
+
+	}
+
+	private static class CompositeStep implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private List<StepAction> actions;
+
+		CompositeStep() {
+		}
+
+		CompositeStep(List<StepAction> actions) {
+			this.actions = actions;
+		}
+
+	}
+
+	private static class CommandStep implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String image;
+
+		private String runAs;
+
+		private String commands;
+
+		private Map<String, String> envMap;
+
+		private boolean useTTY;
+
+		CommandStep() {
+		}
+
+		CommandStep(String image, String runAs, String commands, Map<String, String> envMap, boolean useTTY) {
+			this.image = image;
+			this.runAs = runAs;
+			this.commands = commands;
+			this.envMap = envMap;
+			this.useTTY = useTTY;
+		}
+
+	}
+
+	private static class ImmutableStep implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+
+		ImmutableStep(String name) {
+			this.name = name;
+		}
+
+	}
+
+}
@@ -0,0 +1,110 @@
+package io.onedev.agent;
+
+import static io.onedev.agent.FakeDockerDaemon.response;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.onedev.commons.utils.ExplicitException;
+import io.onedev.commons.utils.command.Commandline;
+
+public class DockerEngineTest {
+
+	@Test
+	public void shouldTalkToDaemonOverPooledConnection() throws Exception {
+		Assume.assumeTrue(DockerEngine.isSupported());
+
+		try (FakeDockerDaemon daemon = new FakeDockerDaemon((requestLine, index) -> {
+			if (index == 0) {
+				String body = "[{\"Name\":\"test\"},{\"Name\":\"test2\"}]";
+				return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+						+ "Transfer-Encoding: chunked\r\n\r\n"
+						+ Integer.toHexString(5) + "\r\n" + body.substring(0, 5) + "\r\n"
+						+ Integer.toHexString(body.length()-5) + "\r\n" + body.substring(5) + "\r\n"
+						+ "0\r\n\r\n";
+			} else {
+				return response(404, "{\"message\":\"No such image\"}");
+			}
+		})) {
+			DockerEngine engine = new DockerEngine(daemon.getSocketPath());
+			try {
+				assertEquals(List.of("test", "test2"), engine.listNetworks("test"));
+				assertNull(engine.inspectImage("busybox:latest"));
+				assertEquals(1, daemon.getConnections());
+				assertEquals(2, daemon.getRequestLines().size());
+				assertEquals("GET /images/busybox:latest/json HTTP/1.1", daemon.getRequestLines().get(1));
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void shouldOnlyRetrySafeRequestOnStaleConnection() throws Exception {
+		Assume.assumeTrue(DockerEngine.isSupported());
+
+		// Daemon answers first request of each connection, and drops connection at second one
+		try (FakeDockerDaemon daemon = new FakeDockerDaemon(
+				(requestLine, index) -> index == 0? response(200, "{}"): null)) {
+			DockerEngine engine = new DockerEngine(daemon.getSocketPath());
+			try {
+				assertEquals(200, engine.send("GET", "/a", null).getStatus());
+				try {
+					engine.send("POST", "/containers/create", null);
+					fail("Request reached daemon and should not be sent again");
+				} catch (IOException e) {
+				}
+				assertEquals(1, daemon.getConnections());
+
+				assertEquals(200, engine.send("GET", "/b", null).getStatus());
+				assertEquals(200, engine.send("GET", "/c", null).getStatus());
+				assertEquals(3, daemon.getConnections());
+				assertEquals(List.of("GET /a HTTP/1.1", "POST /containers/create HTTP/1.1", "GET /b HTTP/1.1",
+						"GET /c HTTP/1.1", "GET /c HTTP/1.1"), daemon.getRequestLines());
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void shouldIgnoreContainerAlreadyGone() throws Exception {
+		Assume.assumeTrue(DockerEngine.isSupported());
+
+		List<Integer> statuses = List.of(404, 409, 500);
+		AtomicInteger requests = new AtomicInteger();
+		try (FakeDockerDaemon daemon = new FakeDockerDaemon((requestLine, index) -> {
+			int status = statuses.get(requests.getAndIncrement());
+			return response(status, "{\"message\":\"status " + status + "\"}");
+		})) {
+			DockerEngine engine = new DockerEngine(daemon.getSocketPath());
+			try {
+				engine.stopContainer("gone", 10);
+				engine.removeContainer("removing", true);
+				try {
+					engine.removeContainer("failed", true);
+					fail("Daemon error should be reported");
+				} catch (ExplicitException e) {
+					assertEquals("Docker daemon error (status: 500): status 500", e.getMessage());
+				}
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void shouldNotUseEngineForRemoteDaemon() {
+		Commandline docker = new Commandline("docker");
+		docker.environments().put("DOCKER_HOST", "tcp://127.0.0.1:2375");
+		assertNull(DockerEngine.of(docker));
+	}
+
+}
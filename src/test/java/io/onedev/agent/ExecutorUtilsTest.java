@@ -0,0 +1,74 @@
+package io.onedev.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ExecutorUtilsTest {
+
+	@Test
+	public void shouldBoundConcurrency() {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			AtomicInteger finished = new AtomicInteger();
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				tasks.add(() -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					Thread.sleep(20);
+					running.decrementAndGet();
+					finished.incrementAndGet();
+					return null;
+				});
+			}
+			ExecutorUtils.runConcurrently(tasks, 3, executor);
+			assertEquals(10, finished.get());
+			assertTrue(maxRunning.get() <= 3);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldInterruptOthersOnFailure() {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			AtomicBoolean interrupted = new AtomicBoolean();
+			List<Callable<Void>> tasks = new ArrayList<>();
+			tasks.add(() -> {
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+				return null;
+			});
+			tasks.add(() -> {
+				Thread.sleep(20);
+				throw new IllegalStateException("service failed");
+			});
+			try {
+				ExecutorUtils.runConcurrently(tasks, 2, executor);
+				fail();
+			} catch (IllegalStateException e) {
+				assertEquals("service failed", e.getMessage());
+			}
+			assertTrue(interrupted.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package io.onedev.agent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+/**
+ * Docker daemon listening on a unix socket in a temporary directory, answering requests of
+ * {@link DockerEngine} with specified handler. Errors of the daemon are thrown when it is
+ * closed, so that they fail the test instead of being lost in daemon threads
+ */
+public class FakeDockerDaemon implements AutoCloseable {
+
+	public interface Handler {
+
+		/**
+		 * @param requestLine request line such as <tt>GET /images/json HTTP/1.1</tt>
+		 * @param index index of the request on its connection, starting from 0
+		 * @return raw http response, or <tt>null</tt> to drop the connection without responding
+		 */
+		@Nullable
+		String handle(String requestLine, int index) throws Exception;
+
+	}
+
+	private final File dir;
+
+	private final File socketFile;
+
+	private final ServerSocketChannel server;
+
+	private final Handler handler;
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private final List<String> requestLines = Collections.synchronizedList(new ArrayList<>());
+
+	private final List<SocketChannel> channels = new ArrayList<>();
+
+	private final List<Thread> threads = new ArrayList<>();
+
+	private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+	private volatile boolean closed;
+
+	public FakeDockerDaemon(Handler handler) throws Exception {
+		this.handler = handler;
+		dir = Files.createTempDirectory("fake-docker-daemon").toFile();
+		socketFile = new File(dir, "docker.sock");
+		SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+				.getMethod("of", String.class).invoke(null, socketFile.getAbsolutePath());
+		server = (ServerSocketChannel) ServerSocketChannel.class
+				.getMethod("open", ProtocolFamily.class).invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+		server.bind(address);
+		start(this::accept);
+	}
+
+	/**
+	 * @return response with specified status and JSON body
+	 */
+	public static String response(int status, String body) {
+		return "HTTP/1.1 " + status + " Status\r\nContent-Type: application/json\r\nContent-Length: "
+				+ body.getBytes(UTF_8).length + "\r\n\r\n" + body;
+	}
+
+	public String getSocketPath() {
+		return socketFile.getAbsolutePath();
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return request lines received so far, in order of arrival
+	 */
+	public List<String> getRequestLines() {
+		synchronized (requestLines) {
+			return new ArrayList<>(requestLines);
+		}
+	}
+
+	private void start(Runnable runnable) {
+		Thread thread = new Thread(runnable, "fake-docker-daemon");
+		thread.setDaemon(true);
+		synchronized (threads) {
+			threads.add(thread);
+		}
+		thread.start();
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				connections.incrementAndGet();
+				synchronized (channels) {
+					channels.add(channel);
+				}
+				start(() -> serve(channel));
+			}
+		} catch (Throwable e) {
+			onError(e);
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		try (channel) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), UTF_8));
+			OutputStream output = Channels.newOutputStream(channel);
+			String requestLine;
+			for (int index=0; (requestLine = reader.readLine()) != null; index++) {
+				requestLines.add(requestLine);
+				int contentLength = 0;
+				String line;
+				while ((line = reader.readLine()) != null && line.length() != 0) {
+					if (line.toLowerCase().startsWith("content-length:"))
+						contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+				}
+				// Request bodies sent by engine are JSON in ASCII
+				for (int i=0; i<contentLength; i++)
+					reader.read();
+
+				String response = handler.handle(requestLine, index);
+				if (response == null)
+					break;
+				output.write(response.getBytes(UTF_8));
+				output.flush();
+			}
+		} catch (Throwable e) {
+			onError(e);
+		}
+	}
+
+	private void onError(Throwable e) {
+		// Reading and accepting fail as expected after daemon is closed
+		if (!closed || !(e instanceof IOException))
+			error.compareAndSet(null, e);
+	}
+
+	@Override
+	public void close() throws Exception {
+		closed = true;
+		server.close();
+		synchronized (channels) {
+			for (SocketChannel channel: channels)
+				channel.close();
+		}
+		List<Thread> threadsCopy;
+		synchronized (threads) {
+			threadsCopy = new ArrayList<>(threads);
+		}
+		for (Thread thread: threadsCopy)
+			thread.join(5000);
+		socketFile.delete();
+		dir.delete();
+		if (error.get() != null)
+			throw new IllegalStateException("Error in fake docker daemon", error.get());
+	}
+
+}
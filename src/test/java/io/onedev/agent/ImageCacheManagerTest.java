@@ -0,0 +1,110 @@
+package io.onedev.agent;
+
+import static io.onedev.agent.FakeDockerDaemon.response;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.onedev.commons.utils.command.Commandline;
+
+public class ImageCacheManagerTest {
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedImagesWithinBudget() throws Exception {
+		Assume.assumeTrue(DockerEngine.isSupported());
+
+		// Image id to tags and size
+		Map<String, List<String>> tags = new LinkedHashMap<>();
+		Map<String, Long> sizes = new ConcurrentHashMap<>();
+		addImage(tags, sizes, "sha256:a", 300, "old:1");
+		addImage(tags, sizes, "sha256:b", 500, "multi:1", "multi:2");
+		addImage(tags, sizes, "sha256:c", 600, "pinned:1");
+		addImage(tags, sizes, "sha256:d", 400, "new:1");
+
+		List<String> deletes = Collections.synchronizedList(new ArrayList<>());
+		FakeDockerDaemon.Handler handler = (requestLine, index) -> {
+			String[] fields = requestLine.split(" ");
+			String path = fields[1];
+			synchronized (tags) {
+				if (fields[0].equals("GET") && path.equals("/images/json")) {
+					ArrayNode images = Agent.objectMapper.createArrayNode();
+					for (var entry: tags.entrySet()) {
+						ObjectNode image = images.addObject();
+						image.put("Id", entry.getKey());
+						image.put("Size", sizes.get(entry.getKey()));
+						ArrayNode repoTags = image.putArray("RepoTags");
+						entry.getValue().forEach(repoTags::add);
+					}
+					return response(200, images.toString());
+				} else if (fields[0].equals("DELETE")) {
+					String tag = path.substring("/images/".length());
+					deletes.add(tag);
+					int status = 404;
+					for (var it = tags.entrySet().iterator(); it.hasNext();) {
+						var entry = it.next();
+						if (entry.getValue().remove(tag)) {
+							status = 200;
+							if (entry.getValue().isEmpty())
+								it.remove();
+						}
+					}
+					return response(status, "[]");
+				} else {
+					String id = path.substring("/images/".length(), path.length() - "/json".length());
+					if (tags.containsKey(id))
+						return response(200, "{\"Id\":\"" + id + "\"}");
+					else
+						return response(404, "{\"message\":\"No such image\"}");
+				}
+			}
+		};
+
+		long budget = Agent.imageCacheBudget;
+		List<String> pinnedImages = Agent.pinnedImages;
+		Agent.imageCacheBudget = 1000;
+		Agent.pinnedImages = List.of("pinned:1");
+		try (FakeDockerDaemon daemon = new FakeDockerDaemon(handler)) {
+			DockerEngine engine = new DockerEngine(daemon.getSocketPath());
+			try {
+				Map<String, Long> usages = new ConcurrentHashMap<>();
+				usages.put("old:1", 1L);
+				usages.put("multi:1", 2L);
+				usages.put("pinned:1", 3L);
+				usages.put("new:1", 4L);
+
+				/*
+				 * Removing "multi:1" frees nothing as the image is still tagged "multi:2", so
+				 * "new:1" also needs to be removed to get within budget
+				 */
+				long freed = ImageCacheManager.evict(engine, new Commandline("docker"), usages);
+				assertEquals(700, freed);
+				assertEquals(List.of("old:1", "multi:1", "new:1"), deletes);
+				assertEquals(Map.of("pinned:1", 3L), usages);
+				assertEquals(List.of("sha256:b", "sha256:c"), new ArrayList<>(tags.keySet()));
+			} finally {
+				engine.close();
+			}
+		} finally {
+			Agent.imageCacheBudget = budget;
+			Agent.pinnedImages = pinnedImages;
+		}
+	}
+
+	private void addImage(Map<String, List<String>> tags, Map<String, Long> sizes, String id, long size,
+						  String... imageTags) {
+		tags.put(id, new ArrayList<>(List.of(imageTags)));
+		sizes.put(id, size);
+	}
+
+}
@@ -0,0 +1,69 @@
+package io.onedev.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InboundDispatcherTest {
+
+	@Test
+	public void shouldKeepOrderWithinLane() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			InboundDispatcher dispatcher = new InboundDispatcher(executor);
+			List<Integer> shell1 = Collections.synchronizedList(new ArrayList<>());
+			List<Integer> shell2 = Collections.synchronizedList(new ArrayList<>());
+			CountDownLatch latch = new CountDownLatch(2000);
+			for (int i=0; i<1000; i++) {
+				int index = i;
+				dispatcher.dispatch("shell:1", () -> {
+					shell1.add(index);
+					latch.countDown();
+				});
+				dispatcher.dispatch("shell:2", () -> {
+					shell2.add(index);
+					latch.countDown();
+				});
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			for (int i=0; i<1000; i++) {
+				assertEquals(i, shell1.get(i).intValue());
+				assertEquals(i, shell2.get(i).intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldNotBlockOtherLanes() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			InboundDispatcher dispatcher = new InboundDispatcher(executor);
+			CountDownLatch release = new CountDownLatch(1);
+			CountDownLatch controlled = new CountDownLatch(1);
+			dispatcher.dispatch("agent", () -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			dispatcher.dispatch("control", controlled::countDown);
+			assertTrue(controlled.await(5, TimeUnit.SECONDS));
+			release.countDown();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package io.onedev.agent;
+
+import static io.onedev.agent.TestSessions.newRemote;
+import static io.onedev.agent.TestSessions.newSession;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Test;
+
+public class JobLoggerTest {
+
+	@Test
+	public void shouldDiscardLogsAfterDisconnectIfServerCanNotResume() {
+		AtomicBoolean open = new AtomicBoolean(true);
+		AtomicInteger sends = new AtomicInteger();
+		Session session = newSession(open, null, newRemote(bytes -> sends.incrementAndGet()));
+		long spooledBytes = JobLogger.getSpooledBytes();
+
+		JobLogger logger = new JobLogger(session, "job1");
+		logger.log("before disconnect");
+		assertEquals(1, sends.get());
+
+		open.set(false);
+		logger.log("after disconnect");
+		logger.log("after disconnect again");
+		logger.close();
+		assertEquals(1, sends.get());
+		assertEquals(2, logger.getDiscarded());
+		assertEquals(spooledBytes, JobLogger.getSpooledBytes());
+	}
+
+}
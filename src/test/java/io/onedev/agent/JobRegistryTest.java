@@ -0,0 +1,100 @@
+package io.onedev.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.onedev.commons.utils.ExplicitException;
+
+public class JobRegistryTest {
+
+	@Test
+	public void shouldAttachToRunningJob() throws Exception {
+		JobRegistry registry = new JobRegistry(10, 60000);
+		AtomicInteger executions = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Serializable> first = executor.submit(() -> registry.execute("job1", 0, () -> {
+				executions.incrementAndGet();
+				started.countDown();
+				release.await();
+				return true;
+			}));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			AtomicReference<Thread> secondThread = new AtomicReference<>();
+			Future<Serializable> second = executor.submit(() -> {
+				secondThread.set(Thread.currentThread());
+				return registry.execute("job1", 0, () -> {
+					executions.incrementAndGet();
+					return false;
+				});
+			});
+
+			// Only release first execution after second call is waiting on it
+			long deadline = System.currentTimeMillis() + 5000;
+			while (secondThread.get() == null || secondThread.get().getState() != Thread.State.WAITING) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			release.countDown();
+			assertEquals(true, first.get(5, TimeUnit.SECONDS));
+			assertEquals(true, second.get(5, TimeUnit.SECONDS));
+			assertEquals(1, executions.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldReturnCachedResult() throws Exception {
+		JobRegistry registry = new JobRegistry(1, 60000);
+		AtomicInteger executions = new AtomicInteger();
+		assertEquals(true, registry.execute("job1", 0, () -> executions.incrementAndGet() != 0));
+		assertEquals(true, registry.execute("job1", 0, () -> executions.incrementAndGet() != 0));
+		assertEquals(1, executions.get());
+
+		// Evicts result of job1
+		registry.execute("job2", 0, () -> true);
+		registry.execute("job1", 0, () -> executions.incrementAndGet() != 0);
+		assertEquals(2, executions.get());
+	}
+
+	@Test
+	public void shouldRunJobAgainWhenRetriedAfterFailure() throws Exception {
+		JobRegistry registry = new JobRegistry(10, 60000);
+		AtomicInteger executions = new AtomicInteger();
+		try {
+			registry.execute("job1", 0, () -> {
+				executions.incrementAndGet();
+				throw new ExplicitException("Step failed");
+			});
+			fail("Exception should be thrown");
+		} catch (ExplicitException e) {
+		}
+		assertEquals(false, registry.execute("job1", 0, () -> executions.incrementAndGet() == 0));
+
+		// Neither thrown exception nor failed result is remembered
+		assertEquals(true, registry.execute("job1", 0, () -> executions.incrementAndGet() != 0));
+		assertEquals(3, executions.get());
+		assertEquals(1, registry.getFinishedCount());
+
+		// Retried job is a different execution even if it succeeded before
+		assertEquals(true, registry.execute("job1", 1, () -> executions.incrementAndGet() != 0));
+		assertEquals(true, registry.execute("job1", 1, () -> executions.incrementAndGet() != 0));
+		assertEquals(4, executions.get());
+	}
+
+}
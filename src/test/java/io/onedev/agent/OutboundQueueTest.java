@@ -0,0 +1,113 @@
+package io.onedev.agent;
+
+import static io.onedev.agent.TestSessions.newRemote;
+import static io.onedev.agent.TestSessions.newSession;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	@Test
+	public void shouldCountFailedWritesAndReportDrops() throws Exception {
+		AtomicBoolean open = new AtomicBoolean(true);
+		AtomicInteger sends = new AtomicInteger();
+		Session session = newSession(open, null, newRemote(bytes -> {
+			// Every second write fails while session is still open
+			if (sends.incrementAndGet() % 2 == 0)
+				throw new IOException("Broken pipe");
+		}));
+		OutboundQueue queue = OutboundQueue.open(session);
+		try {
+			assertTrue(new Message(MessageTypes.JOB_LOG, "written").sendBy(session));
+			queue.flush();
+			assertTrue(new Message(MessageTypes.JOB_LOG, "failed").sendBy(session));
+			queue.flush();
+			assertEquals(2, sends.get());
+			assertEquals(1, queue.getWritten());
+			assertEquals(1, queue.getFailed());
+			assertEquals(0, queue.getDropped());
+		} finally {
+			open.set(false);
+			OutboundQueue.close(session);
+		}
+		assertFalse(queue.offer(new Message(MessageTypes.JOB_LOG, "dropped")));
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	public void shouldHandOverPendingMessagesInOrder() throws Exception {
+		AtomicBoolean primaryOpen = new AtomicBoolean(true);
+		List<Message> primaryWrites = Collections.synchronizedList(new ArrayList<>());
+		Session primarySession = newSession(primaryOpen, Capabilities.STREAM_CHANNELS, newRemote(bytes -> {
+			byte[] copy = new byte[bytes.remaining()];
+			bytes.get(copy);
+			primaryWrites.add(Message.of(copy, 0, copy.length, copy.length));
+		}));
+
+		AtomicBoolean bulkOpen = new AtomicBoolean(true);
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Session bulkSession = newSession(bulkOpen, Capabilities.STREAM_CHANNELS, newRemote(bytes -> {
+			// Bulk connection stalls at its first write, and then goes away
+			writing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+			}
+			throw new IOException("Connection reset");
+		}));
+
+		OutboundQueue primaryQueue = OutboundQueue.open(primarySession);
+		Channels.open(primarySession);
+		OutboundQueue.open(bulkSession);
+		Channels bulkChannels = Channels.open(bulkSession);
+		try {
+			bulkChannels.announce(1001, "job1");
+			assertTrue(writing.await(10, TimeUnit.SECONDS));
+			bulkChannels.announce(1002, "job2");
+			new Message(MessageTypes.JOB_LOG, new BinaryWriter().writeVarInt(1001).writeString("").toByteBuffer()).sendBy(bulkSession);
+			new Message(MessageTypes.JOB_LOG, new BinaryWriter().writeVarInt(1002).writeString("").toByteBuffer()).sendBy(bulkSession);
+			Channels.release(1001);
+
+			bulkOpen.set(false);
+			List<Message> pending = OutboundQueue.drain(bulkSession);
+			assertEquals(4, pending.size());
+			assertEquals(0, Channels.handOver(bulkSession, primarySession, pending));
+			assertFalse(new Message(MessageTypes.JOB_LOG, "late").sendBy(bulkSession));
+			primaryQueue.flush();
+
+			List<String> written = new ArrayList<>();
+			for (Message message: primaryWrites) {
+				BinaryReader reader = new BinaryReader(message.getData());
+				written.add(message.getType() + ":" + reader.readVarInt());
+			}
+			// Channel released on bulk connection is announced again as its messages are still pending
+			assertEquals(List.of("CHANNEL_OPEN:1002", "CHANNEL_OPEN:1001", "JOB_LOG:1001", "JOB_LOG:1002",
+					"CHANNEL_CLOSE:1001"), written);
+			assertNull(Channels.of(bulkSession));
+		} finally {
+			release.countDown();
+			primaryOpen.set(false);
+			bulkOpen.set(false);
+			OutboundQueue.close(primarySession);
+			OutboundQueue.close(bulkSession);
+			Channels.close(primarySession);
+			Channels.close(bulkSession);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package io.onedev.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+
+	private static final String[] ARTIFACTS = {"commons-lang3", "guava", "jackson-databind", "jetty-server",
+			"slf4j-api", "logback-classic", "junit", "mockito-core", "hibernate-core", "netty-handler"};
+
+	/*
+	 * Generate text resembling a maven build log: downloads, compiler output and test results
+	 */
+	private byte[] newBuildLog(int size) {
+		Random random = new Random(1);
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < size) {
+			String artifact = ARTIFACTS[random.nextInt(ARTIFACTS.length)];
+			String version = random.nextInt(5) + "." + random.nextInt(20) + "." + random.nextInt(10);
+			switch (random.nextInt(4)) {
+				case 0:
+					builder.append("Downloading from central: https://repo.maven.apache.org/maven2/org/example/")
+							.append(artifact).append("/").append(version).append("/").append(artifact)
+							.append("-").append(version).append(".jar\n");
+					break;
+				case 1:
+					builder.append("Downloaded from central: https://repo.maven.apache.org/maven2/org/example/")
+							.append(artifact).append("/").append(version).append("/").append(artifact)
+							.append("-").append(version).append(".pom (").append(random.nextInt(100))
+							.append(" kB at ").append(random.nextInt(1000)).append(" kB/s)\n");
+					break;
+				case 2:
+					builder.append("[INFO] Compiling ").append(random.nextInt(500))
+							.append(" source files to /onedev-build/workspace/target/classes\n");
+					break;
+				default:
+					builder.append("[INFO] Tests run: ").append(random.nextInt(50)).append(", Failures: 0, Errors: 0, Skipped: ")
+							.append(random.nextInt(3)).append(", Time elapsed: 0.").append(random.nextInt(999))
+							.append(" s - in io.onedev.server.").append(artifact.replace("-", ".")).append("Test\n");
+			}
+		}
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void shouldRoundTrip() {
+		byte[] log = newBuildLog(100000);
+		ByteBuffer compressed = new PayloadCompressor(1024).compress(ByteBuffer.wrap(log));
+		assertTrue(compressed.remaining() < log.length);
+		assertEquals(ByteBuffer.wrap(log), PayloadCompressor.inflate(compressed, log.length));
+	}
+
+	@Test
+	public void shouldSkipSmallPayload() {
+		assertNull(new PayloadCompressor(1024).compress(ByteBuffer.wrap(new byte[100])));
+		assertNull(new PayloadCompressor(0).compress(ByteBuffer.wrap(newBuildLog(100000))));
+	}
+
+	@Test
+	public void shouldAdaptLevelToLinkThroughput() {
+		PayloadCompressor compressor = new PayloadCompressor(1024);
+		compressor.recordWrite(1024*1024, 1000000000L);
+		assertEquals(9, compressor.getLevel());
+		for (int i=0; i<100; i++)
+			compressor.recordWrite(100*1024*1024, 1000000000L);
+		assertEquals(1, compressor.getLevel());
+	}
+
+	@Test
+	public void shouldCompressBuildLogsBetterAtHigherLevels() {
+		byte[] log = newBuildLog(8*1024*1024);
+		int lastSize = Integer.MAX_VALUE;
+		for (int level: new int[] {1, 3, 6, 9}) {
+			int compressedSize = PayloadCompressor.deflate(ByteBuffer.wrap(log), level).remaining();
+			assertTrue(compressedSize < log.length / 3);
+			assertTrue(compressedSize <= lastSize);
+			lastSize = compressedSize;
+		}
+	}
+
+	/*
+	 * Report bytes saved against CPU spent at each level for a realistic build log. Ignored
+	 * as it only reports numbers, run it manually when tuning compression levels
+	 */
+	@Ignore
+	@Test
+	public void benchmarkBuildLogs() {
+		byte[] log = newBuildLog(8*1024*1024);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		for (int level: new int[] {1, 3, 6, 9}) {
+			int rounds = 5;
+			int compressedSize = 0;
+			long cpuTime = threadBean.getCurrentThreadCpuTime();
+			for (int i=0; i<rounds; i++)
+				compressedSize = PayloadCompressor.deflate(ByteBuffer.wrap(log), level).remaining();
+			long cpuMillis = (threadBean.getCurrentThreadCpuTime() - cpuTime) / rounds / 1000000;
+			System.out.println(String.format("level %d: %d -> %d bytes (%.1f%% saved), %d ms cpu (%.1f MB/s)",
+					level, log.length, compressedSize, 100.0 * (log.length - compressedSize) / log.length,
+					cpuMillis, log.length / 1024.0 / 1024.0 / Math.max(cpuMillis, 1) * 1000));
+		}
+	}
+
+	@Test
+	public void shouldRejectPayloadInflatingBeyondMaxLength() {
+		byte[] log = newBuildLog(100000);
+		ByteBuffer compressed = PayloadCompressor.deflate(ByteBuffer.wrap(log), 6);
+		try {
+			PayloadCompressor.inflate(compressed, log.length - 1);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("length: " + log.length));
+		}
+		assertEquals(ByteBuffer.wrap(log), PayloadCompressor.inflate(compressed, log.length));
+	}
+
+}
@@ -0,0 +1,84 @@
+package io.onedev.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+
+/**
+ * Websocket sessions backed by dynamic proxies, for tests not needing a real connection
+ */
+public class TestSessions {
+
+	public interface Sender {
+
+		void send(ByteBuffer bytes) throws IOException;
+
+	}
+
+	/**
+	 * @param sender sender receiving each whole message, with partial messages combined
+	 */
+	public static RemoteEndpoint newRemote(Sender sender) {
+		ByteArrayOutputStream partial = new ByteArrayOutputStream();
+		return (RemoteEndpoint) Proxy.newProxyInstance(TestSessions.class.getClassLoader(),
+				new Class<?>[] {RemoteEndpoint.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "sendBytes":
+						case "sendBytesByFuture":
+							sender.send((ByteBuffer) args[0]);
+							break;
+						case "sendPartialBytes":
+							ByteBuffer bytes = (ByteBuffer) args[0];
+							while (bytes.hasRemaining())
+								partial.write(bytes.get());
+							if ((Boolean) args[1]) {
+								sender.send(ByteBuffer.wrap(partial.toByteArray()));
+								partial.reset();
+							}
+							break;
+					}
+					return null;
+				});
+	}
+
+	/**
+	 * @param open controls whether the session is open
+	 * @param capabilities capabilities accepted by server, or <tt>null</tt> if none
+	 */
+	public static Session newSession(AtomicBoolean open, @Nullable String capabilities, RemoteEndpoint remote) {
+		UpgradeResponse response = (UpgradeResponse) Proxy.newProxyInstance(TestSessions.class.getClassLoader(),
+				new Class<?>[] {UpgradeResponse.class}, (proxy, method, args) -> {
+					if (method.getName().equals("getHeader") && Capabilities.HEADER.equals(args[0]))
+						return capabilities;
+					return null;
+				});
+		return (Session) Proxy.newProxyInstance(TestSessions.class.getClassLoader(), new Class<?>[] {Session.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "isOpen":
+							return open.get();
+						case "getRemote":
+							return remote;
+						case "getUpgradeResponse":
+							return response;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						case "toString":
+							return "session";
+						default:
+							return null;
+					}
+				});
+	}
+
+}
@@ -0,0 +1,140 @@
+package io.onedev.agent;
+
+import static io.onedev.agent.TestSessions.newRemote;
+import static io.onedev.agent.TestSessions.newSession;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.SerializationException;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Test;
+
+public class WebsocketUtilsTest {
+
+	private static final int CALLERS = 64;
+
+	private static final int CALLS_PER_CALLER = 200;
+
+	@Test
+	public void shouldTimeout() throws Exception {
+		CompletableFuture<Serializable> future = WebsocketUtils.register(UUID.randomUUID().toString(), null, 50);
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void shouldCompleteWithResponse() throws Exception {
+		String uuid = UUID.randomUUID().toString();
+		CompletableFuture<Serializable> future = WebsocketUtils.register(uuid, null, 0);
+		WebsocketUtils.onResponse(new CallData(uuid, "pong"));
+		assertEquals("pong", future.get());
+		assertEquals(0, WebsocketUtils.getPendingCount());
+	}
+
+	@Test
+	public void shouldCorrelateConcurrentCalls() throws Exception {
+		BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+		ExecutorService executor = Executors.newFixedThreadPool(CALLERS + 1);
+		try {
+			// Respond in a different order than requests are sent
+			Future<?> responder = executor.submit(() -> {
+				try {
+					List<String> batch = new ArrayList<>();
+					for (int i=0; i<CALLERS*CALLS_PER_CALLER; i++) {
+						batch.add(requests.take());
+						if (requests.isEmpty() || batch.size() == CALLERS) {
+							Collections.reverse(batch);
+							for (String uuid: batch)
+								WebsocketUtils.onResponse(new CallData(uuid, uuid));
+							batch.clear();
+						}
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			List<Future<?>> callers = new ArrayList<>();
+			for (int i=0; i<CALLERS; i++) {
+				callers.add(executor.submit(() -> {
+					for (int j=0; j<CALLS_PER_CALLER; j++) {
+						String uuid = UUID.randomUUID().toString();
+						CompletableFuture<Serializable> future = WebsocketUtils.register(uuid, null, 60000);
+						requests.add(uuid);
+						assertEquals(uuid, future.get());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> caller: callers)
+				caller.get();
+			responder.get();
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(0, WebsocketUtils.getPendingCount());
+	}
+
+	@Test
+	public void shouldNotSendPartiallyEncodedCallData() throws Exception {
+		List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+		Session session = newSession(new AtomicBoolean(true),
+				Capabilities.BINARY_CODEC + "," + Capabilities.CHUNKED_RPC, newRemote(bytes -> {
+					byte[] copy = new byte[bytes.remaining()];
+					bytes.get(copy);
+					messages.add(Message.of(copy, 0, copy.length, copy.length));
+				}));
+
+		// Fails to serialize as referenced object is not serializable
+		Serializable unserializable = new AtomicReference<>(new Object());
+		try {
+			WebsocketUtils.sendCallData(session, MessageTypes.RESPONSE, new CallData("uuid1", unserializable));
+			fail();
+		} catch (SerializationException e) {
+		}
+		assertEquals(0, messages.size());
+
+		// Fails after some chunks are sent
+		ArrayList<Serializable> payload = new ArrayList<>();
+		payload.add(StringUtils.repeat('a', Agent.MAX_CHUNK_BYTES * 2));
+		payload.add(unserializable);
+		try {
+			WebsocketUtils.sendCallData(session, MessageTypes.RESPONSE, new CallData("uuid2", payload));
+			fail();
+		} catch (SerializationException e) {
+		}
+		assertTrue(messages.size() > 1);
+		ChunkAssembler assembler = new ChunkAssembler(Long.MAX_VALUE);
+		InputStream input = null;
+		for (Message message: messages) {
+			assertEquals(MessageTypes.RESPONSE_CHUNK, message.getType());
+			InputStream stream = assembler.append(message.getData());
+			if (stream != null)
+				input = stream;
+		}
+		assertEquals(0, assembler.getPendingCount());
+		try {
+			input.readAllBytes();
+			fail();
+		} catch (IOException e) {
+			assertEquals("Peer failed to encode call data", e.getMessage());
+		}
+	}
+
+}